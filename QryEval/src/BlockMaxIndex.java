@@ -0,0 +1,373 @@
+/**
+ *  This class stores per-block score bounds for the inverted lists of
+ *  an index, so that top-k evaluation (daat:pruning=bmw) can skip
+ *  blocks of documents that can't enter the top k.
+ *
+ *  The bounds are computed offline by the main method, which walks
+ *  each inverted list the way InvList reads it and writes a sidecar
+ *  file.  A list is divided into blocks of blockSize live postings.
+ *  For each block, the file stores the last docid in the block and,
+ *  for each range of document lengths, the largest tf of a posting
+ *  in the block whose document length is in the range.  BM25 and
+ *  Indri term scores increase with tf and decrease with document
+ *  length, so the largest tf and the shortest length in a range bound
+ *  every posting in that range, whatever the model parameters are.
+ *  Short lists don't benefit from skipping, so only terms whose df is
+ *  at least minDf are stored.
+ *
+ *  The file is
+ *
+ *    header:      magic, format, index version, maxDoc, blockSize,
+ *                 number of length ranges, the ranges' lower bounds
+ *    per term:    the largest tf in each range for the whole list,
+ *                 then for each block, the last docid and the largest
+ *                 tf in each range
+ *    dictionary:  the number of terms, then field, term, offset and
+ *                 number of blocks of each term
+ *    trailer:     the offset of the dictionary
+ *
+ *  Usage:  java BlockMaxIndex indexPath outputFile [blockSize [minDf]]
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.*;
+
+public class BlockMaxIndex {
+
+  private static final int FILE_MAGIC = 0x424d4158;		// "BMAX"
+  private static final int FILE_FORMAT = 1;
+
+  //  Document length ranges:  0, 1, 2-3, 4-7, ..., 16384 and longer.
+
+  private static final int[] LENGTH_RANGES = {
+    0, 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024, 2048, 4096, 8192, 16384 };
+
+  private RandomAccessFile file;
+  private int blockSize;
+  private int[] lengthRanges;
+  private Map<String, Entry> dictionary = new HashMap<String, Entry>();
+
+  private static class Entry {
+    long offset;
+    int numBlocks;
+    Blocks blocks = null;	// mapped on first use
+  }
+
+  /**
+   *  Open a block-max file and read its dictionary.
+   *  @param reader The index.
+   *  @param path The block-max file.
+   *  @throws IOException if the file is invalid or belongs to a
+   *  different version of the index.
+   */
+  public BlockMaxIndex(IndexReader reader, File path) throws IOException {
+    this.file = new RandomAccessFile(path, "r");
+
+    if ((this.file.readInt() != FILE_MAGIC) || (this.file.readInt() != FILE_FORMAT))
+      throw new IOException("Not a block-max file:  " + path);
+
+    if ((this.file.readLong() != QryEval.indexVersion(reader)) ||
+        (this.file.readInt() != reader.maxDoc()))
+      throw new IOException("The block-max file belongs to a different index:  " + path);
+
+    this.blockSize = this.file.readInt();
+    this.lengthRanges = new int[this.file.readInt()];
+
+    for (int i = 0; i < this.lengthRanges.length; i++)
+      this.lengthRanges[i] = this.file.readInt();
+
+    this.file.seek(this.file.length() - 8);
+    this.file.seek(this.file.readLong());
+
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(this.file.getFD()), 1 << 16));
+    int numTerms = in.readInt();
+
+    for (int i = 0; i < numTerms; i++) {
+      String field = in.readUTF();
+      String term = in.readUTF();
+      Entry e = new Entry();
+
+      e.offset = in.readLong();
+      e.numBlocks = in.readInt();
+      this.dictionary.put(term + "." + field, e);
+    }
+  }
+
+  /**
+   *  @return The number of postings in a block.
+   */
+  public int blockSize() {
+    return this.blockSize;
+  }
+
+  /**
+   *  @return The number of terms that have block bounds.
+   */
+  public int numTerms() {
+    return this.dictionary.size();
+  }
+
+  /**
+   *  Get the blocks of a term's inverted list.  A term's blocks are
+   *  mapped the first time they are read, and later calls return the
+   *  same blocks.
+   *  @param term The processed term string.
+   *  @param field The term's field.
+   *  @return The blocks, or null if the file doesn't have the term.
+   *  @throws IOException
+   */
+  public Blocks getBlocks(String term, String field) throws IOException {
+    Entry e = this.dictionary.get(term + "." + field);
+
+    if (e == null)
+      return null;
+
+    synchronized (this) {
+      if (e.blocks == null) {
+        int numRanges = this.lengthRanges.length;
+        long length = 4L * numRanges + 4L * (1 + numRanges) * e.numBlocks;
+        ByteBuffer buf =
+          this.file.getChannel().map(FileChannel.MapMode.READ_ONLY, e.offset, length);
+        e.blocks = new Blocks(buf.asIntBuffer(), e.numBlocks, this.lengthRanges);
+      }
+    }
+
+    return e.blocks;
+  }
+
+  /**
+   *  The blocks of one inverted list.  Block -1 stands for the whole
+   *  list.  Blocks are read with absolute gets, so scorers in several
+   *  threads can share them.
+   */
+  public static class Blocks {
+
+    private IntBuffer data;
+    private int numBlocks;
+    private int[] lengthRanges;
+
+    Blocks(IntBuffer data, int numBlocks, int[] lengthRanges) {
+      this.data = data;
+      this.numBlocks = numBlocks;
+      this.lengthRanges = lengthRanges;
+    }
+
+    /**
+     *  @return The number of blocks.
+     */
+    public int numBlocks() {
+      return this.numBlocks;
+    }
+
+    /**
+     *  @return The number of document length ranges.
+     */
+    public int numRanges() {
+      return this.lengthRanges.length;
+    }
+
+    /**
+     *  @param range A length range.
+     *  @return The shortest document length in the range.
+     */
+    public int minLength(int range) {
+      return this.lengthRanges[range];
+    }
+
+    /**
+     *  @param block A block.
+     *  @return The last docid in the block.
+     */
+    public int lastDoc(int block) {
+      return this.data.get(this.lengthRanges.length + block * (1 + this.lengthRanges.length));
+    }
+
+    /**
+     *  @param block A block, or -1 for the whole list.
+     *  @param range A length range.
+     *  @return The largest tf of a posting in the block whose document
+     *  length is in the range, or 0 if there is no such posting.
+     */
+    public int maxTf(int block, int range) {
+      if (block < 0)
+        return this.data.get(range);
+      return this.data.get(this.lengthRanges.length + block * (1 + this.lengthRanges.length)
+                           + 1 + range);
+    }
+
+    /**
+     *  Find the block that contains a docid.  The search gallops
+     *  forward from a block, so a series of increasing targets costs
+     *  little more than one pass over the block list.
+     *  @param from The block to start from.
+     *  @param target A docid.
+     *  @return The first block, starting at from, whose last docid is
+     *  at least target, or numBlocks() if there is none.
+     */
+    public int findBlock(int from, int target) {
+      if ((from > 0) && (lastDoc(from - 1) >= target))
+        from = 0;
+
+      int lo = from;
+      int step = 1;
+
+      while ((lo < this.numBlocks) && (lastDoc(lo) < target)) {
+        from = lo + 1;
+        lo += step;
+        step <<= 1;
+      }
+
+      int hi = Math.min(lo, this.numBlocks);
+
+      while (from < hi) {
+        int mid = (from + hi) >>> 1;
+        if (lastDoc(mid) < target)
+          from = mid + 1;
+        else
+          hi = mid;
+      }
+
+      return from;
+    }
+  }
+
+  /**
+   *  @return The length range of a document length.
+   */
+  private static int lengthRange(long length) {
+    int range = LENGTH_RANGES.length - 1;
+
+    while (LENGTH_RANGES[range] > length)
+      range--;
+
+    return range;
+  }
+
+  /**
+   *  Build a block-max file.
+   *  @param args indexPath outputFile [blockSize [minDf]]
+   *  @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+
+    if ((args.length < 2) || (args.length > 4)) {
+      System.err.println("Usage:  java BlockMaxIndex indexPath outputFile [blockSize [minDf]]");
+      System.exit(1);
+    }
+
+    int blockSize = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+    int minDf = (args.length > 3) ? Integer.parseInt(args[3]) : 2 * blockSize;
+    long startTime = System.currentTimeMillis();
+
+    QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+
+    IndexReader reader = QryEval.READER;
+    DocLengthStore docLengths = new DocLengthStore(reader, DocLengthStore.Mode.PRELOAD, null);
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+    int numRanges = LENGTH_RANGES.length;
+
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(args[1]), 1 << 16));
+    ByteArrayOutputStream dictBytes = new ByteArrayOutputStream();
+    DataOutputStream dict = new DataOutputStream(dictBytes);
+    int numTerms = 0;
+    long numBlocksTotal = 0;
+    long offset = 0;
+
+    try {
+      out.writeInt(FILE_MAGIC);
+      out.writeInt(FILE_FORMAT);
+      out.writeLong(QryEval.indexVersion(reader));
+      out.writeInt(reader.maxDoc());
+      out.writeInt(blockSize);
+      out.writeInt(numRanges);
+      for (int i = 0; i < numRanges; i++)
+        out.writeInt(LENGTH_RANGES[i]);
+      offset = 28 + 4 * numRanges;
+
+      for (String field : MultiFields.getIndexedFields(reader)) {
+        DocLengthStore.FieldLengths lengths = docLengths.getField(field);
+        Terms terms = MultiFields.getTerms(reader, field);
+
+        if ((lengths == null) || (terms == null))
+          continue;
+
+        TermsEnum termsEnum = terms.iterator(null);
+        BytesRef termBytes;
+
+        while ((termBytes = termsEnum.next()) != null) {
+          if (termsEnum.docFreq() < minDf)
+            continue;
+
+          //  Read the list the way InvList does, without positions.
+
+          DocsEnum iList =
+            MultiFields.getTermDocsEnum(reader, liveDocs, field, termBytes, DocsEnum.FLAG_FREQS);
+
+          if (iList == null)
+            continue;
+
+          int[] summary = new int[numRanges];
+          int[] blocks = new int[16 * (1 + numRanges)];
+          int numBlocks = 0;
+          int numPostings = 0;
+          int docid;
+
+          while ((docid = iList.nextDoc()) != DocsEnum.NO_MORE_DOCS) {
+            if (numPostings % blockSize == 0) {
+              numBlocks++;
+              if (numBlocks * (1 + numRanges) > blocks.length)
+                blocks = Arrays.copyOf(blocks, 2 * blocks.length);
+            }
+
+            int base = (numBlocks - 1) * (1 + numRanges);
+            int range = lengthRange(lengths.get(docid));
+            int tf = iList.freq();
+
+            blocks[base] = docid;
+            blocks[base + 1 + range] = Math.max(blocks[base + 1 + range], tf);
+            summary[range] = Math.max(summary[range], tf);
+            numPostings++;
+          }
+
+          if (numBlocks == 0)
+            continue;
+
+          for (int i = 0; i < numRanges; i++)
+            out.writeInt(summary[i]);
+          for (int i = 0; i < numBlocks * (1 + numRanges); i++)
+            out.writeInt(blocks[i]);
+
+          dict.writeUTF(field);
+          dict.writeUTF(termBytes.utf8ToString());
+          dict.writeLong(offset);
+          dict.writeInt(numBlocks);
+
+          offset += 4L * numRanges + 4L * (1 + numRanges) * numBlocks;
+          numBlocksTotal += numBlocks;
+          numTerms++;
+        }
+      }
+
+      out.writeInt(numTerms);
+      dict.flush();
+      dictBytes.writeTo(out);
+      out.writeLong(offset);
+    } finally {
+      out.close();
+    }
+
+    System.out.println("Block-max file:  " + numTerms + " terms, " + numBlocksTotal +
+                       " blocks of " + blockSize + " postings, written in " +
+                       (System.currentTimeMillis() - startTime) + " ms");
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ *  This class stores the collection statistics that retrieval models
+ *  need: the number of documents, and the total length, document
+ *  count and average document length of each indexed field.  They are
+ *  read from the index once, when it is opened, so scoring a term
+ *  does not need to ask the index for them again.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+public class CollectionStats {
+
+  /**
+   *  The statistics of one field.
+   */
+  public static class FieldStats {
+    public final long sumTotalTermFreq;	// collection length
+    public final int docCount;		// documents that have the field
+    public final float avgDocLength;	// sumTotalTermFreq / docCount
+
+    FieldStats(long sumTotalTermFreq, int docCount) {
+      this.sumTotalTermFreq = sumTotalTermFreq;
+      this.docCount = docCount;
+      this.avgDocLength = (float) sumTotalTermFreq / docCount;
+    }
+  }
+
+  //  Fields that are not in the index are empty, as they are for
+  //  IndexReader.
+
+  private static final FieldStats EMPTY = new FieldStats(0, 0);
+
+  private final int numDocs;
+  private final Map<String, FieldStats> fields;
+
+  /**
+   *  Read the statistics of every indexed field.
+   *  @param reader The index.
+   *  @throws IOException
+   */
+  public CollectionStats(IndexReader reader) throws IOException {
+    Map<String, FieldStats> fields = new HashMap<String, FieldStats>();
+
+    for (String field : MultiFields.getIndexedFields(reader))
+      fields.put(field, new FieldStats(reader.getSumTotalTermFreq(field),
+                                       reader.getDocCount(field)));
+
+    this.numDocs = reader.numDocs();
+    this.fields = Collections.unmodifiableMap(fields);
+  }
+
+  /**
+   *  @return The number of documents in the index (N).
+   */
+  public int numDocs() {
+    return this.numDocs;
+  }
+
+  /**
+   *  @param field A field name.
+   *  @return The statistics of the field.
+   */
+  public FieldStats getField(String field) {
+    FieldStats stats = this.fields.get(field);
+    return (stats == null) ? EMPTY : stats;
+  }
+
+  /**
+   *  @param field A field name.
+   *  @return The total number of terms in the field (collection length).
+   */
+  public long sumTotalTermFreq(String field) {
+    return getField(field).sumTotalTermFreq;
+  }
+
+  /**
+   *  @param field A field name.
+   *  @return The number of documents that have the field.
+   */
+  public int docCount(String field) {
+    return getField(field).docCount;
+  }
+
+  /**
+   *  @param field A field name.
+   *  @return The average length of the field.
+   */
+  public float avgDocLength(String field) {
+    return getField(field).avgDocLength;
+  }
+}
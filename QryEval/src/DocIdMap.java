@@ -0,0 +1,280 @@
+/**
+ *  This class maps between internal (Lucene) document ids and
+ *  external document ids, e.g., clueweb09-enwp00-88-09710.  Looking
+ *  up an id in the index costs a stored-document read or a term
+ *  query, so the map reads every external id once and then answers
+ *  lookups from two tables:
+ *
+ *  - internal to external: the external ids, UTF-8 encoded and packed
+ *    into one byte array, with an offset per internal id;
+ *  - external to internal: the internal ids of live documents, sorted
+ *    by external id, which is binary searched.
+ *
+ *  The tables can be kept on the heap, or saved to a file next to the
+ *  index and memory-mapped, so later runs don't have to rebuild them.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Bits;
+
+public class DocIdMap {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int FILE_MAGIC = 0x44494453;		// "DIDS"
+  private static final int FILE_HEADER_BYTES = 24;
+
+  private IntBuffer offsets;	// maxDoc + 1 offsets into ids
+  private IntBuffer sorted;	// live internal ids, in external id order
+  private ByteBuffer ids;	// packed external ids
+
+  /**
+   *  Build the map in memory.
+   *  @param reader The index.
+   *  @throws IOException
+   */
+  public DocIdMap(IndexReader reader) throws IOException {
+    Tables t = build(reader);
+
+    this.offsets = IntBuffer.wrap(t.offsets);
+    this.sorted = IntBuffer.wrap(t.sorted);
+    this.ids = ByteBuffer.wrap(t.ids, 0, t.numBytes);
+  }
+
+  /**
+   *  Memory-map the map from a file.  If the file is missing or
+   *  belongs to a different version of the index, the map is built
+   *  and saved first.
+   *  @param reader The index.
+   *  @param file The map file.
+   *  @throws IOException
+   */
+  public DocIdMap(IndexReader reader, File file) throws IOException {
+    long version = QryEval.indexVersion(reader);
+
+    if (! fileIsValid(file, reader.maxDoc(), version))
+      write(file, build(reader), version);
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      ByteBuffer buf =
+        raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+      buf.position(8);
+      buf.getLong();				// version, already checked
+      int maxDoc = buf.getInt();
+      int numSorted = buf.getInt();
+      int idsStart = FILE_HEADER_BYTES + 4 * (maxDoc + 1 + numSorted);
+
+      this.offsets = slice(buf, FILE_HEADER_BYTES, 4 * (maxDoc + 1)).asIntBuffer();
+      this.sorted = slice(buf, FILE_HEADER_BYTES + 4 * (maxDoc + 1), 4 * numSorted).asIntBuffer();
+      this.ids = slice(buf, idsStart, buf.capacity() - idsStart);
+    } finally {
+      raf.close();		// the mapping stays valid
+    }
+  }
+
+  /**
+   *  Get the external id of a document.
+   *  @param iid The internal document id.
+   *  @return The external id, or null if the document doesn't have one.
+   */
+  public String getExternalDocid(int iid) {
+    int start = this.offsets.get(iid);
+    int end = this.offsets.get(iid + 1);
+
+    if (start == end)
+      return null;
+
+    byte[] bytes = new byte[end - start];
+
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = this.ids.get(start + i);
+
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   *  Get the internal id of a live document.
+   *  @param externalId The external document id.
+   *  @return The internal id, or -1 if no live document has that id.
+   */
+  public int getInternalDocid(String externalId) {
+    byte[] target = externalId.getBytes(UTF8);
+    int lo = 0;
+    int hi = this.sorted.limit() - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int iid = this.sorted.get(mid);
+      int cmp = compare(this.ids, this.offsets.get(iid), this.offsets.get(iid + 1),
+                        target);
+
+      if (cmp < 0)
+        lo = mid + 1;
+      else if (cmp > 0)
+        hi = mid - 1;
+      else
+        return iid;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Compare a packed external id to a target, byte by byte.  This
+   *  is the order that the sorted table uses.
+   */
+  private static int compare(ByteBuffer ids, int start, int end, byte[] target) {
+    int len = Math.min(end - start, target.length);
+
+    for (int i = 0; i < len; i++) {
+      int a = ids.get(start + i) & 0xff;
+      int b = target[i] & 0xff;
+
+      if (a != b)
+        return a - b;
+    }
+
+    return (end - start) - target.length;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buf, int start, int length) {
+    ByteBuffer dup = buf.duplicate();
+    dup.position(start);
+    dup.limit(start + length);
+    return dup.slice();
+  }
+
+  /**
+   *  The tables, before they are wrapped or saved.
+   */
+  private static class Tables {
+    int[] offsets;
+    int[] sorted;
+    byte[] ids;
+    int numBytes;
+  }
+
+  /**
+   *  Read every external id from the index and build the tables.
+   */
+  private static Tables build(IndexReader reader) throws IOException {
+    int maxDoc = reader.maxDoc();
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+    Set<String> fieldsToLoad = Collections.singleton("externalId");
+    final Tables t = new Tables();
+
+    t.offsets = new int[maxDoc + 1];
+    t.ids = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(16, 16L * maxDoc))];
+    t.numBytes = 0;
+
+    for (int iid = 0; iid < maxDoc; iid++) {
+      String eid = reader.document(iid, fieldsToLoad).get("externalId");
+      byte[] bytes = (eid == null) ? new byte[0] : eid.getBytes(UTF8);
+
+      if (t.numBytes + bytes.length > t.ids.length) {
+        if ((long) t.numBytes + bytes.length > Integer.MAX_VALUE)
+          throw new IOException("External ids are too long for the docid map");
+        t.ids = Arrays.copyOf(t.ids, (int) Math.min(Integer.MAX_VALUE - 8,
+                                                     Math.max(2L * t.ids.length,
+                                                              (long) t.numBytes + bytes.length)));
+      }
+
+      System.arraycopy(bytes, 0, t.ids, t.numBytes, bytes.length);
+      t.offsets[iid] = t.numBytes;
+      t.numBytes += bytes.length;
+    }
+
+    t.offsets[maxDoc] = t.numBytes;
+
+    //  Sort the live documents by external id.
+
+    List<Integer> live = new ArrayList<Integer>(maxDoc);
+
+    for (int iid = 0; iid < maxDoc; iid++)
+      if (((liveDocs == null) || liveDocs.get(iid)) &&
+          (t.offsets[iid] < t.offsets[iid + 1]))
+        live.add(iid);
+
+    Collections.sort(live, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        int aStart = t.offsets[a], aLen = t.offsets[a + 1] - aStart;
+        int bStart = t.offsets[b], bLen = t.offsets[b + 1] - bStart;
+
+        for (int i = 0; i < Math.min(aLen, bLen); i++) {
+          int cmp = (t.ids[aStart + i] & 0xff) - (t.ids[bStart + i] & 0xff);
+          if (cmp != 0)
+            return cmp;
+        }
+
+        return aLen - bLen;
+      }
+    });
+
+    t.sorted = new int[live.size()];
+
+    for (int i = 0; i < t.sorted.length; i++)
+      t.sorted[i] = live.get(i);
+
+    return t;
+  }
+
+  private static boolean fileIsValid(File file, int maxDoc, long version)
+    throws IOException {
+
+    if (! file.exists() || (file.length() < FILE_HEADER_BYTES))
+      return false;
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      return ((raf.readInt() == FILE_MAGIC) &&
+              (raf.readInt() == 0) &&
+              (raf.readLong() == version) &&
+              (raf.readInt() == maxDoc));
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   *  Save the tables.  The header is the magic number, a reserved
+   *  int, the index version, maxDoc and the number of sorted ids.
+   */
+  private static void write(File file, Tables t, long version) throws IOException {
+    long length = FILE_HEADER_BYTES + 4L * (t.offsets.length + t.sorted.length) + t.numBytes;
+
+    if (length > Integer.MAX_VALUE)
+      throw new IOException("The docid map is too large to map:  " + length + " bytes");
+
+    DataOutputStream out =
+      new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+
+    try {
+      out.writeInt(FILE_MAGIC);
+      out.writeInt(0);
+      out.writeLong(version);
+      out.writeInt(t.offsets.length - 1);
+      out.writeInt(t.sorted.length);
+
+      for (int i = 0; i < t.offsets.length; i++)
+        out.writeInt(t.offsets[i]);
+
+      for (int i = 0; i < t.sorted.length; i++)
+        out.writeInt(t.sorted[i]);
+
+      out.write(t.ids, 0, t.numBytes);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -2,9 +2,16 @@
  *  Copyright (c) 2013, Carnegie Mellon University.  All Rights Reserved.
  */
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.Map;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.MultiDocValues;
@@ -12,20 +19,79 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ *
+ * By default lengths are read from the index norms on every call.  The
+ * store can also preload each field's lengths into an int array, or
+ * map them from a sidecar file (built on first use) so that indexes
+ * larger than the heap can still avoid the norms lookup.  Scoring loops
+ * should get a {@link FieldLengths} handle once per field instead of
+ * calling {@link #getDocLength} for every posting.
  */
 public class DocLengthStore  {
 
+  /**
+   * How document lengths are stored.
+   */
+  public enum Mode { INDEX, PRELOAD, MMAP };
+
+  /**
+   * The document lengths of one field.
+   */
+  public static abstract class FieldLengths {
+
+    /**
+     * @param docid The internal docid in the lucene index.
+     * @return The length of the field in the document.
+     */
+    public abstract long get(int docid) throws IOException;
+  }
+
+  private static final int SIDECAR_MAGIC = 0x444c454e;		// "DLEN"
+  private static final int SIDECAR_HEADER_BYTES = 16;
+  private static final int MMAP_CHUNK_BITS = 28;		// docs per mapping
+
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private Mode mode;
+  private  Map<String, FieldLengths> values = new HashMap<String, FieldLengths>();
+  private Map<String, Long> minLengths = new HashMap<String, Long>();
+  private long loadTime = 0;
+  private long heapBytes = 0;
+  private long mappedBytes = 0;
 
   /**
    * @param reader IndexReader object created in {@link QryEval}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this(reader, Mode.INDEX, null);
+  }
+
+  /**
+   * @param reader IndexReader object created in {@link QryEval}.
+   * @param mode How document lengths are stored.
+   * @param sidecarDir The directory of the sidecar files (MMAP only).
+   */
+  public DocLengthStore(IndexReader reader, Mode mode, File sidecarDir)
+    throws IOException {
     this.reader = reader;
+    this.mode = mode;
+
+    long startTime = System.currentTimeMillis();
+
     for (String field : MultiFields.getIndexedFields(this.reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      NumericDocValues norms = MultiDocValues.getNormValues(reader, field);
+
+      if (norms == null)
+        continue;
+
+      if (mode == Mode.PRELOAD)
+        this.values.put(field, preload(norms));
+      else if (mode == Mode.MMAP)
+        this.values.put(field, map(field, norms, sidecarDir));
+      else
+        this.values.put(field, new NormLengths(norms));
     }
+
+    this.loadTime = System.currentTimeMillis() - startTime;
   }
 
   /**
@@ -38,4 +104,232 @@ public class DocLengthStore  {
   public long getDocLength(String fieldname, int docid) throws IOException {
     return values.get(fieldname).get(docid);
   }
+
+  /**
+   * Returns a handle to the lengths of one field.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @return The field's lengths, or null if the field has no lengths.
+   */
+  public FieldLengths getField(String fieldname) {
+    return values.get(fieldname);
+  }
+
+  /**
+   * Returns a handle to the lengths of one field for a scorer that
+   * reads one leaf (segment) of the index.  Lengths read from the
+   * index norms come from the leaf's norms, which skips finding the
+   * leaf of each docid; documents of other leaves still get their
+   * lengths.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @param leaf The leaf, or null.
+   * @return The field's lengths, or null if the field has no lengths.
+   */
+  public FieldLengths getField(String fieldname, AtomicReaderContext leaf)
+    throws IOException {
+    FieldLengths lengths = values.get(fieldname);
+
+    if ((leaf == null) || (lengths == null) || (this.mode != Mode.INDEX))
+      return lengths;
+
+    NumericDocValues norms = leaf.reader().getNormValues(fieldname);
+
+    if (norms == null)
+      return lengths;
+
+    return new LeafNormLengths(norms, leaf.docBase, leaf.reader().maxDoc(), lengths);
+  }
+
+  /**
+   * Returns the shortest length of a field in any document, including
+   * documents that don't have the field.  It is found on first use.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @return The shortest length, or 0 if the field has no lengths.
+   */
+  public synchronized long minDocLength(String fieldname) throws IOException {
+    Long minLength = minLengths.get(fieldname);
+
+    if (minLength == null) {
+      FieldLengths lengths = values.get(fieldname);
+      long min = 0;
+
+      if (lengths != null) {
+        int maxDoc = this.reader.maxDoc();
+        min = Long.MAX_VALUE;
+        for (int docid = 0; (docid < maxDoc) && (min > 0); docid++)
+          min = Math.min(min, lengths.get(docid));
+        if (maxDoc == 0)
+          min = 0;
+      }
+
+      minLength = min;
+      minLengths.put(fieldname, minLength);
+    }
+
+    return minLength;
+  }
+
+  /**
+   * Print how the lengths are stored, how long it took to load them,
+   * and how much memory they use.
+   */
+  public void printStats() {
+    System.out.println("Doc lengths:  " + this.mode.toString().toLowerCase() +
+                       ", " + this.values.size() + " fields, loaded in " +
+                       this.loadTime + " ms, " +
+                       (this.heapBytes / 1024L) + " KB heap, " +
+                       (this.mappedBytes / 1024L) + " KB mapped");
+  }
+
+  /**
+   * Copy a field's lengths from the norms into an int array.
+   */
+  private FieldLengths preload(NumericDocValues norms) {
+    int maxDoc = this.reader.maxDoc();
+    final int[] lengths = new int[maxDoc];
+
+    for (int docid = 0; docid < maxDoc; docid++)
+      lengths[docid] = (int) norms.get(docid);
+
+    this.heapBytes += 4L * maxDoc;
+
+    return new FieldLengths() {
+      public long get(int docid) {
+        return lengths[docid];
+      }
+    };
+  }
+
+  /**
+   * Map a field's lengths from its sidecar file.  The file is rebuilt
+   * from the norms if it is missing or belongs to a different index
+   * version.
+   */
+  private FieldLengths map(String field, NumericDocValues norms, File sidecarDir)
+    throws IOException {
+    int maxDoc = this.reader.maxDoc();
+    long version = QryEval.indexVersion(this.reader);
+    File file = new File(sidecarDir, "doclen." + field);
+
+    if (! sidecarIsValid(file, maxDoc, version))
+      writeSidecar(file, norms, maxDoc, version);
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      FileChannel channel = raf.getChannel();
+      int numChunks = (maxDoc >>> MMAP_CHUNK_BITS) + 1;
+      final IntBuffer[] chunks = new IntBuffer[numChunks];
+
+      for (int i = 0; i < numChunks; i++) {
+        long firstDoc = (long) i << MMAP_CHUNK_BITS;
+        long numDocs = Math.min(maxDoc - firstDoc, 1L << MMAP_CHUNK_BITS);
+        MappedByteBuffer buf =
+          channel.map(FileChannel.MapMode.READ_ONLY,
+                      SIDECAR_HEADER_BYTES + 4L * firstDoc, 4L * numDocs);
+        chunks[i] = buf.asIntBuffer();
+      }
+
+      this.mappedBytes += 4L * maxDoc;
+
+      return new FieldLengths() {
+        public long get(int docid) {
+          return chunks[docid >>> MMAP_CHUNK_BITS].get(docid & ((1 << MMAP_CHUNK_BITS) - 1));
+        }
+      };
+    } finally {
+      raf.close();		// the mappings stay valid
+    }
+  }
+
+  private static boolean sidecarIsValid(File file, int maxDoc, long version)
+    throws IOException {
+
+    if (! file.exists() ||
+        (file.length() != SIDECAR_HEADER_BYTES + 4L * maxDoc))
+      return false;
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+    try {
+      return ((raf.readInt() == SIDECAR_MAGIC) &&
+              (raf.readInt() == maxDoc) &&
+              (raf.readLong() == version));
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void writeSidecar(File file, NumericDocValues norms,
+                                   int maxDoc, long version) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+    try {
+      raf.setLength(0);
+
+      FileChannel channel = raf.getChannel();
+      ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+
+      buf.putInt(SIDECAR_MAGIC).putInt(maxDoc).putLong(version);
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        if (buf.remaining() < 4) {
+          buf.flip();
+          while (buf.hasRemaining())
+            channel.write(buf);
+          buf.clear();
+        }
+        buf.putInt((int) norms.get(docid));
+      }
+
+      buf.flip();
+      while (buf.hasRemaining())
+        channel.write(buf);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Lengths read from the index norms.
+   */
+  private static class NormLengths extends FieldLengths {
+    private NumericDocValues norms;
+
+    NormLengths(NumericDocValues norms) {
+      this.norms = norms;
+    }
+
+    public long get(int docid) {
+      return norms.get(docid);
+    }
+  }
+
+  /**
+   * Lengths read from one leaf's norms, and from the whole index's
+   * norms for documents of other leaves.
+   */
+  private static class LeafNormLengths extends FieldLengths {
+    private NumericDocValues norms;
+    private int docBase;
+    private int maxDoc;
+    private FieldLengths others;
+
+    LeafNormLengths(NumericDocValues norms, int docBase, int maxDoc, FieldLengths others) {
+      this.norms = norms;
+      this.docBase = docBase;
+      this.maxDoc = maxDoc;
+      this.others = others;
+    }
+
+    public long get(int docid) throws IOException {
+      int doc = docid - docBase;
+
+      if ((doc < 0) || (doc >= maxDoc))
+        return others.get(docid);
+      return norms.get(doc);
+    }
+  }
 }
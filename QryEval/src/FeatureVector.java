@@ -492,7 +492,7 @@ public class FeatureVector {
 
   private double BM25Evaluation(TermVector termVec, String field, int docid) throws Exception {
     double totalBM25Score = 0.0;
-    float avgDocLen = this.model.avgDocLenMap.get(field);
+    float avgDocLen = QryEval.collectionStats.avgDocLength(field);
 
     // RetrievalModelLearnToRank model = (RetrievalModelLearnToRank)r;
     long docLen = QryEval.docLenStore.getDocLength(field, docid);
@@ -507,7 +507,7 @@ public class FeatureVector {
         docFreq = termVec.stemDf(i);
 
         // RSJ weight
-        RSJWeight = Math.log((this.model.N - docFreq + 0.5) / (docFreq + 0.5));
+        RSJWeight = Math.log((QryEval.collectionStats.numDocs() - docFreq + 0.5) / (docFreq + 0.5));
 
         tf = termVec.stemFreq(i);
         // tf Weight
@@ -526,7 +526,7 @@ public class FeatureVector {
     double totalIndriScore = 1.0;
     // RetrievalModelLearnToRank model = (RetrievalModelLearnToRank)r;
 
-    long collectionLength = this.model.collectionLengthMap.get(field);
+    long collectionLength = QryEval.collectionStats.sumTotalTermFreq(field);
     // long collectionLength = QryEval.READER.getSumTotalTermFreq(field);
     long docLen = QryEval.docLenStore.getDocLength(field, docid);
 
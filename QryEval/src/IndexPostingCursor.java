@@ -0,0 +1,143 @@
+/**
+ *  This class implements a PostingCursor that reads an inverted list
+ *  directly from the index.  Postings are decoded only when the cursor
+ *  reaches them, and positions are decoded only when they are read, so
+ *  nothing is copied into memory.  If positions are not needed, the
+ *  cursor is opened on docids and tfs only.  A cursor can also read
+ *  the postings of one segment (leaf) of the index, for segment
+ *  parallel evaluation; it still reports index docids and statistics.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+public class IndexPostingCursor extends PostingCursor {
+
+  private String field;
+  private int df;
+  private long ctf;
+  private boolean hasPositions;
+  private DocsEnum postings;			// null if the term does not occur
+  private int docBase = 0;			// the first docid of the leaf
+
+  /**
+   *  Open the inverted list of a term.  The df and ctf are index
+   *  statistics, so they match the postings only if the index has no
+   *  deleted documents.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @throws IOException
+   */
+  public IndexPostingCursor(String termString, String fieldString) throws IOException {
+    this(termString, fieldString, true);
+  }
+
+  /**
+   *  Open the inverted list of a term.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param readPositions If false, positions are not available.
+   *  @throws IOException
+   */
+  public IndexPostingCursor(String termString, String fieldString,
+                            boolean readPositions) throws IOException {
+    this(termString, fieldString, readPositions, null);
+  }
+
+  /**
+   *  Open the inverted list of a term in one leaf of the index.  The
+   *  df and ctf are still the statistics of the whole index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param readPositions If false, positions are not available.
+   *  @param leaf The leaf, or null to read the whole index.
+   *  @throws IOException
+   */
+  public IndexPostingCursor(String termString, String fieldString,
+                            boolean readPositions, AtomicReaderContext leaf)
+    throws IOException {
+
+    this.field = fieldString;
+    this.hasPositions = readPositions;
+
+    BytesRef termBytes = new BytesRef(termString);
+    Term term = new Term(fieldString, termBytes);
+
+    this.df = QryEval.READER.docFreq(term);
+
+    if (this.df < 1)
+      return;
+
+    this.ctf = QryEval.READER.totalTermFreq(term);
+
+    if (leaf != null) {
+      this.docBase = leaf.docBase;
+      this.postings = readPositions ?
+        leaf.reader().termPositionsEnum(term) : leaf.reader().termDocsEnum(term);
+    } else if (readPositions)
+      this.postings =
+        MultiFields.getTermPositionsEnum(QryEval.READER,
+                                         MultiFields.getLiveDocs(QryEval.READER),
+                                         fieldString, termBytes);
+    else
+      this.postings =
+        MultiFields.getTermDocsEnum(QryEval.READER,
+                                    MultiFields.getLiveDocs(QryEval.READER),
+                                    fieldString, termBytes, DocsEnum.FLAG_FREQS);
+  }
+
+  public String field() {
+    return this.field;
+  }
+
+  public int df() {
+    return this.df;
+  }
+
+  public long ctf() {
+    return this.ctf;
+  }
+
+  public boolean hasPositions() {
+    return this.hasPositions;
+  }
+
+  public int docID() {
+    return (this.postings == null) ? NO_MORE_DOCS : toIndexDocid(this.postings.docID());
+  }
+
+  public int nextDoc() throws IOException {
+    return (this.postings == null) ? NO_MORE_DOCS : toIndexDocid(this.postings.nextDoc());
+  }
+
+  public int advance(int target) throws IOException {
+    int doc = docID();
+
+    if (doc >= target)
+      return doc;
+
+    return toIndexDocid(this.postings.advance(Math.max(target - this.docBase, 0)));
+  }
+
+  /**
+   *  Convert a leaf docid to an index docid.
+   */
+  private int toIndexDocid(int doc) {
+    return ((doc < 0) || (doc == NO_MORE_DOCS)) ? doc : doc + this.docBase;
+  }
+
+  public int freq() throws IOException {
+    return this.postings.freq();
+  }
+
+  public int nextPosition() throws IOException {
+    if (! this.hasPositions)
+      throw new UnsupportedOperationException("Positions were not read for this term");
+
+    return ((DocsAndPositionsEnum) this.postings).nextPosition();
+  }
+}
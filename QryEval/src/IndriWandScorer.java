@@ -0,0 +1,105 @@
+/**
+ *  A WandScorer for the Indri operators that multiply their arguments'
+ *  scores, each raised to a weight:  #AND, whose weights are 1/q, and
+ *  #WAND.  Arguments that don't match a document contribute their
+ *  default scores, so no argument scores 0, and in logarithms a score
+ *  is the weighted sum of the arguments' log scores.
+ *
+ *  Each default score is at most the argument's maxDefaultScore, so a
+ *  document's log score is at most a base, the weighted sum of the log
+ *  maxDefaultScores, plus a gain of w * (log score - log
+ *  maxDefaultScore) for each argument that matches it.  The bounds
+ *  come from the term scorers, which derive them from the collection
+ *  statistics and the shortest document length (or from block bounds).
+ *
+ *  Subclasses compute the exact score, with the same arithmetic as the
+ *  unpruned scorer.  In log space (Indri:logSpace) the arguments'
+ *  scores and bounds are already logarithms, and so is this scorer's
+ *  score.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+public abstract class IndriWandScorer extends WandScorer {
+
+  private double[] weights;
+  private double[] logMaxDefault;
+  private double logBase;
+  private boolean logSpace;
+
+  /**
+   *  @param scorers The arguments; canBound(scorers, logSpace) must be
+   *  true.
+   *  @param weights The normalized argument weights.
+   *  @param useBlocks Whether to check block bounds.
+   *  @param logSpace Whether scores are log probabilities.
+   */
+  public IndriWandScorer(Scorer[] scorers, double[] weights, boolean useBlocks,
+                         boolean logSpace) {
+
+    super(scorers, useBlocks);
+
+    this.weights = weights;
+    this.logSpace = logSpace;
+    this.logMaxDefault = new double[scorers.length];
+    this.logBase = 0.0;
+
+    for (int i = 0; i < scorers.length; i++) {
+      this.logMaxDefault[i] = toLog(scorers[i].maxDefaultScore());
+      this.logBase += weights[i] * this.logMaxDefault[i];
+    }
+  }
+
+  /**
+   *  Whether every argument has finite bounds on its score and default
+   *  score, and default scores that aren't 0.
+   *  @param scorers The arguments.
+   *  @param logSpace Whether scores are log probabilities.
+   *  @return true if an IndriWandScorer can be used.
+   */
+  public static boolean canBound(Scorer[] scorers, boolean logSpace) {
+    for (int i = 0; i < scorers.length; i++) {
+      double maxDefault = scorers[i].maxDefaultScore();
+
+      if (! (scorers[i].maxScore() < Double.POSITIVE_INFINITY) ||
+          ! (maxDefault < Double.POSITIVE_INFINITY) ||
+          ! (maxDefault > (logSpace ? Double.NEGATIVE_INFINITY : 0.0)))
+        return false;
+    }
+
+    return true;
+  }
+
+  private double toLog(double score) {
+    return this.logSpace ? score : Math.log(score);
+  }
+
+  protected double gain(int i, double score) {
+    return this.weights[i] * (toLog(score) - this.logMaxDefault[i]);
+  }
+
+  protected double gainThreshold(double minScore) {
+    if (this.logSpace)
+      return minScore - this.logBase;
+    return (minScore > 0.0) ? Math.log(minScore) - this.logBase : Double.NEGATIVE_INFINITY;
+  }
+
+  /**
+   *  A matching document scores at most the product of the larger of
+   *  each argument's bounds, raised to the argument's weight.
+   */
+  public double maxScore() {
+    double logMax = this.logBase;
+
+    for (int i = 0; i < this.scorers.length; i++)
+      logMax += Math.max(gain(i, this.scorers[i].maxScore()), 0.0);
+
+    return this.logSpace ? logMax : Math.exp(logMax);
+  }
+
+  public double maxDefaultScore() {
+    return this.logSpace ? this.logBase : Math.exp(this.logBase);
+  }
+}
@@ -4,6 +4,16 @@
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
  *
+ *  Postings are packed into flat int arrays rather than stored as one
+ *  object per posting.  docids[n] and tfs[n] describe the n'th
+ *  posting, and its positions are positions[positionOffsets[n]] to
+ *  positions[positionOffsets[n] + tfs[n] - 1].  This keeps long lists
+ *  (e.g., a common term in the body field) from turning into millions
+ *  of small boxed objects.
+ *
+ *  An inverted list can also be built without positions, when no
+ *  query operator needs them.  Its tfs are still valid.
+ *
  *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
  */
 
@@ -16,35 +26,22 @@ import org.apache.lucene.search.*;
 
 public class InvList {
 
-  //  Utility class that makes it easier to construct postings.
-
-  public class DocPosting {
-
-    public int docid = 0;
-    public int tf = 0;
-    public Vector<Integer> positions = new Vector<Integer>();
-
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  //  Initial capacity of an inverted list that is built incrementally.
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  private static final int INITIAL_CAPACITY = 16;
 
   //  Class variables.
 
   public int ctf = 0;
   public int df = 0;
   public String field;
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
+
+  private int[] docids = new int[0];
+  private int[] tfs = new int[0];
+  private int[] positionOffsets = new int[0];
+  private int[] positions = new int[0];
+  private int numPositions = 0;
+  private boolean hasPositions = true;
 
   /**
    *  Constructor.  An empty inverted list. Useful for some query operators.
@@ -66,6 +63,19 @@ public class InvList {
    *  @throws IOException
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this(termString, fieldString, true);
+  }
+
+  /**
+   *  Fetch an inverted list from the index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param readPositions If false, only docids and tfs are fetched,
+   *  which avoids decoding positions.
+   *  @throws IOException
+   */
+  public InvList(String termString, String fieldString, boolean readPositions)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
@@ -76,15 +86,38 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (QryEval.READER.docFreq(term) < 1)
+    int docFreq = QryEval.READER.docFreq(term);
+
+    this.hasPositions = readPositions;
+
+    if (docFreq < 1)
       return;
 
     //  Lookup the inverted list.
 
-    DocsAndPositionsEnum iList =
-      MultiFields.getTermPositionsEnum(QryEval.READER,
-				       MultiFields.getLiveDocs(QryEval.READER),
-				       fieldString, termBytes);
+    DocsEnum iList;
+
+    if (readPositions)
+      iList = MultiFields.getTermPositionsEnum(QryEval.READER,
+					       MultiFields.getLiveDocs(QryEval.READER),
+					       fieldString, termBytes);
+    else
+      iList = MultiFields.getTermDocsEnum(QryEval.READER,
+					  MultiFields.getLiveDocs(QryEval.READER),
+					  fieldString, termBytes, DocsEnum.FLAG_FREQS);
+
+    //  The index statistics give the exact array sizes unless there
+    //  are deleted documents, in which case they are upper bounds.
+
+    long totalTermFreq = QryEval.READER.totalTermFreq(term);
+
+    this.docids = new int[docFreq];
+    this.tfs = new int[docFreq];
+    this.positionOffsets = new int[docFreq];
+    if (readPositions)
+      this.positions =
+        new int[(totalTermFreq > 0 && totalTermFreq <= Integer.MAX_VALUE) ?
+                (int) totalTermFreq : INITIAL_CAPACITY];
 
     //  Copy from Lucene inverted list format to our inverted list
     //  format. This is a little inefficient, but allows query
@@ -94,48 +127,211 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+      int numRead = 0;
+
+      ensurePostingCapacity(this.df + 1);
+
+      if (readPositions) {
+        DocsAndPositionsEnum pList = (DocsAndPositionsEnum) iList;
+
+        ensurePositionCapacity(this.numPositions + tf);
+
+        for (int j = 0; j < tf; j++)
+          this.positions[this.numPositions + j] = pList.nextPosition();
+
+        numRead = tf;
+      }
+
+      addPosting (iList.docID(), tf, numRead);
+    }
+  }
+
+  /**
+   *  Copy the postings that a cursor has not reached yet into a new
+   *  inverted list.
+   *  @param cursor A cursor over an inverted list.
+   *  @throws IOException
+   */
+  public InvList(PostingCursor cursor) throws IOException {
+
+    this.field = cursor.field();
+    this.hasPositions = cursor.hasPositions();
+
+    int[] positions = new int[INITIAL_CAPACITY];
+
+    for (int doc = cursor.nextDoc(); doc != PostingCursor.NO_MORE_DOCS; doc = cursor.nextDoc()) {
+      int tf = cursor.freq();
+
+      if (! this.hasPositions) {
+        appendPosting(doc, tf);
+        continue;
+      }
+
+      if (tf > positions.length)
+        positions = new int[Math.max(tf, positions.length * 2)];
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        positions[j] = cursor.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
-      this.df++;
-      this.ctf += tf;
+      appendPosting(doc, positions, tf);
     }
   }
 
   /**
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
-   *  @param n The posting internal document id.
+   *  @param docid The posting internal document id.
    *  @param positions A list of positions where the term occurs.
    *  @result true if the posting was added successfully, otherwise false.
    */
   public boolean appendPosting (int docid, List<Integer> positions) {
-    
-    //  A posting can only be appended if its docid is greater than
-    //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if (! canAppend (docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    int tf = positions.size();
 
-    this.postings.add (p);
-    this.df ++;
-    this.ctf += p.tf;
+    ensurePostingCapacity(this.df + 1);
+    ensurePositionCapacity(this.numPositions + tf);
+
+    for (int j = 0; j < tf; j++)
+      this.positions[this.numPositions + j] = positions.get(j);
+
+    addPosting (docid, tf, tf);
     return true;
   }
 
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.
+   *  @param docid The posting internal document id.
+   *  @param positions An array that holds the positions where the term occurs.
+   *  @param length The number of positions to copy from the array.
+   *  @result true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] positions, int length) {
+
+    if (! canAppend (docid))
+      return false;
+
+    ensurePostingCapacity(this.df + 1);
+    ensurePositionCapacity(this.numPositions + length);
+
+    System.arraycopy(positions, 0, this.positions, this.numPositions, length);
+
+    addPosting (docid, length, length);
+    return true;
+  }
+
+  /**
+   *  Append a posting that has a term frequency but no positions.
+   *  Once such a posting is appended, the inverted list no longer
+   *  provides positions.  Posting must be appended in docid order,
+   *  otherwise this method fails.
+   *  @param docid The posting internal document id.
+   *  @param tf The term frequency.
+   *  @result true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int tf) {
+
+    if (! canAppend (docid))
+      return false;
+
+    ensurePostingCapacity(this.df + 1);
+
+    this.hasPositions = false;
+    addPosting (docid, tf, 0);
+    return true;
+  }
+
+  /**
+   *  A posting can only be appended if its docid is greater than
+   *  the last docid.
+   */
+  private boolean canAppend (int docid) {
+    return (this.df == 0) || (this.docids[this.df-1] < docid);
+  }
+
+  /**
+   *  Record a posting whose positions (if any) were already copied to
+   *  the end of the positions array.
+   */
+  private void addPosting (int docid, int tf, int numPositionsAdded) {
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.positionOffsets[this.df] = this.numPositions;
+    this.df ++;
+    this.ctf += tf;
+    this.numPositions += numPositionsAdded;
+  }
+
+  private void ensurePostingCapacity (int capacity) {
+    if (capacity <= this.docids.length)
+      return;
+
+    int newCapacity = Math.max(capacity, Math.max(INITIAL_CAPACITY, this.docids.length * 2));
+
+    this.docids = Arrays.copyOf(this.docids, newCapacity);
+    this.tfs = Arrays.copyOf(this.tfs, newCapacity);
+    this.positionOffsets = Arrays.copyOf(this.positionOffsets, newCapacity);
+  }
+
+  private void ensurePositionCapacity (int capacity) {
+    if (capacity <= this.positions.length)
+      return;
+
+    int newCapacity = Math.max(capacity, Math.max(INITIAL_CAPACITY, this.positions.length * 2));
+
+    this.positions = Arrays.copyOf(this.positions, newCapacity);
+  }
+
+  /**
+   *  Find the first posting, starting at index from, whose docid is at
+   *  least target.  The search gallops forward from the starting point
+   *  and then does a binary search, so its cost grows with the log of
+   *  the distance skipped rather than the distance itself.
+   *  @param from The index to start at.
+   *  @param target The docid to look for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid(int from, int target) {
+
+    if (from >= this.df || this.docids[from] >= target)
+      return from;
+
+    //  Gallop.  docids[lo] < target, and docids[hi] >= target or hi >= df.
+
+    int lo = from;
+    int hi = from + 1;
+    int step = 1;
+
+    while (hi < this.df && this.docids[hi] < target) {
+      lo = hi;
+      step <<= 1;
+      hi = (step < this.df - lo) ? lo + step : this.df;
+    }
+
+    //  Binary search between lo and hi.
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.docids[mid] < target)
+        lo = mid;
+      else
+        hi = mid;
+    }
+
+    return hi;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
    *  @param n The index of the requested document.
    *  @return The internal document id.
    */
   public int getDocid(int n) {
-    return this.postings.get(n).docid;
+    return this.docids[n];
   }
 
   /**
@@ -144,7 +340,115 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
+  }
+
+  /**
+   *  Estimate the memory used by the inverted list, including unused
+   *  array capacity.
+   *  @return The approximate size in bytes.
+   */
+  public long sizeInBytes() {
+    return 64L +
+      4L * (this.docids.length + this.tfs.length +
+            this.positionOffsets.length + this.positions.length);
+  }
+
+  /**
+   *  @return true if the inverted list stores positions.
+   */
+  public boolean hasPositions() {
+    return this.hasPositions;
+  }
+
+  /**
+   *  Get the j'th position in the n'th document of the inverted list.
+   *  Only valid if the inverted list stores positions.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested position, 0 <= j < getTf(n).
+   *  @return The position.
+   */
+  public int getPosition(int n, int j) {
+    return this.positions[this.positionOffsets[n] + j];
+  }
+
+  /**
+   *  Get a copy of the positions in the n'th document of the inverted
+   *  list.  Query operators should prefer getPosition, which does not
+   *  allocate.
+   *  @param n The index of the requested document.
+   *  @return The document's positions.
+   */
+  public int[] getPositions(int n) {
+    int offset = this.positionOffsets[n];
+    return Arrays.copyOfRange(this.positions, offset, offset + this.tfs[n]);
+  }
+
+  /**
+   *  Get a cursor that iterates over this inverted list.
+   *  @return A new cursor, positioned before the first document.
+   */
+  public PostingCursor cursor() {
+    return new Cursor();
+  }
+
+  /**
+   *  A PostingCursor over an inverted list that is already in memory.
+   */
+  public class Cursor extends PostingCursor {
+
+    private int n = -1;			// The current posting
+    private int nextPosition = 0;	// The next position in the current posting
+
+    public String field() {
+      return InvList.this.field;
+    }
+
+    public int df() {
+      return InvList.this.df;
+    }
+
+    public long ctf() {
+      return InvList.this.ctf;
+    }
+
+    public boolean hasPositions() {
+      return InvList.this.hasPositions;
+    }
+
+    public int docID() {
+      if (this.n < 0)
+        return -1;
+      if (this.n >= InvList.this.df)
+        return NO_MORE_DOCS;
+      return InvList.this.docids[this.n];
+    }
+
+    public int nextDoc() {
+      if (this.n < InvList.this.df)
+        this.n++;
+      this.nextPosition = 0;
+      return docID();
+    }
+
+    public int advance(int target) {
+      if (docID() >= target)
+        return docID();
+
+      this.n = findDocid(Math.max(this.n, 0), target);
+      this.nextPosition = 0;
+      return docID();
+    }
+
+    public int freq() {
+      return InvList.this.tfs[this.n];
+    }
+
+    public int nextPosition() {
+      if (! InvList.this.hasPositions)
+        throw new UnsupportedOperationException("Positions were not stored for this inverted list");
+      return InvList.this.positions[InvList.this.positionOffsets[this.n] + this.nextPosition++];
+    }
   }
 
   /**
@@ -155,11 +459,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+          + this.getTf(i) + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; this.hasPositions && j < this.getTf(i); j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
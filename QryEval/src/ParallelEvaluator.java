@@ -0,0 +1,174 @@
+/**
+ *  This class evaluates the arguments of a query operator in parallel,
+ *  e.g., the #AND, #NEAR and #WINDOW parts of
+ *  #WAND(0.7 #AND(...) 0.2 #AND(#NEAR/1(...) ...) 0.1 #AND(#WINDOW/8(...) ...)),
+ *  which are independent of each other.  It cuts the latency of a
+ *  single heavy query, which batch parallelism (batch:threads) doesn't
+ *  help.
+ *
+ *  Forking pays off only when at least two arguments are expensive.
+ *  An argument's cost is the number of postings that evaluating it
+ *  reads, estimated from the dfs of its terms.  Arguments that cost at
+ *  least minPostings are evaluated by the pool, except the most
+ *  expensive one, which the calling thread evaluates along with the
+ *  cheap arguments.  Then the calling thread joins the forked
+ *  arguments in order.  A forked argument that no pool thread has
+ *  started yet is evaluated by the calling thread, so nested forks
+ *  can't deadlock when every pool thread is waiting.
+ *
+ *  Subtrees that occur in several places of a query are wrapped in
+ *  shared operators (QryopSlShared, QryopIlShared), which evaluate
+ *  them once even if several threads ask for them.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ParallelEvaluator {
+
+  private ExecutorService pool;
+  private long minPostings;
+
+  private long forkedOps = 0;		// operators that forked arguments
+  private long forkedArgs = 0;		// arguments given to the pool
+  private long joinedArgs = 0;		// forked arguments that the caller evaluated
+
+  /**
+   *  Constructor.
+   *  @param threads The number of pool threads.
+   *  @param minPostings The estimated number of postings that an
+   *  argument must read to be evaluated by the pool.
+   */
+  public ParallelEvaluator(int threads, long minPostings) {
+    this.minPostings = minPostings;
+    this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable task) {
+        Thread t = new Thread(task, "ParallelEvaluator");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   *  Evaluate the arguments of a query operator, in parallel if at
+   *  least two of them are expensive.
+   *  @param args The arguments.
+   *  @param r A retrieval model that controls how the operators behave.
+   *  @return The arguments' results, in argument order.
+   *  @throws IOException
+   */
+  public QryResult[] evaluate(List<Qryop> args, final RetrievalModel r) throws IOException {
+    QryResult[] results = new QryResult[args.size()];
+    long[] costs = new long[args.size()];
+    int numExpensive = 0;
+    int inline = -1;			// the most expensive argument
+
+    for (int i = 0; i < args.size(); i++) {
+      costs[i] = ResultCache.postings(args.get(i));
+      if (costs[i] >= this.minPostings) {
+        numExpensive ++;
+        if ((inline < 0) || (costs[i] > costs[inline]))
+          inline = i;
+      }
+    }
+
+    if (numExpensive < 2) {
+      for (int i = 0; i < args.size(); i++)
+        results[i] = args.get(i).evaluate(r);
+      return results;
+    }
+
+    //  Fork the expensive arguments, then evaluate the others here.
+
+    List<FutureTask<QryResult>> tasks =
+      new ArrayList<FutureTask<QryResult>>(Collections.nCopies(args.size(), (FutureTask<QryResult>) null));
+    final Thread[] threads = new Thread[args.size()];	// the thread that evaluated each fork
+
+    for (int i = 0; i < args.size(); i++) {
+      if ((i != inline) && (costs[i] >= this.minPostings)) {
+        final Qryop arg = args.get(i);
+        final int n = i;
+
+        FutureTask<QryResult> task = new FutureTask<QryResult>(new Callable<QryResult>() {
+          public QryResult call() throws IOException {
+            threads[n] = Thread.currentThread();
+            return arg.evaluate(r);
+          }
+        });
+        tasks.set(i, task);
+        this.pool.execute(task);
+      }
+    }
+
+    int joined = 0;
+
+    try {
+      for (int i = 0; i < args.size(); i++)
+        if (tasks.get(i) == null)
+          results[i] = args.get(i).evaluate(r);
+
+      for (int i = 0; i < args.size(); i++) {
+        if (tasks.get(i) != null) {
+          // Evaluate the argument here if no pool thread started it.
+          // Otherwise run() does nothing, and join() waits.
+          tasks.get(i).run();
+          results[i] = join(tasks.get(i));
+          if (threads[i] == Thread.currentThread())
+            joined ++;
+        }
+      }
+    } finally {
+      for (int i = 0; i < args.size(); i++)
+        if (tasks.get(i) != null)
+          tasks.get(i).cancel(false);
+    }
+
+    synchronized (this) {
+      this.forkedOps ++;
+      this.forkedArgs += numExpensive - 1;
+      this.joinedArgs += joined;
+    }
+
+    return results;
+  }
+
+  /**
+   *  Wait for a forked evaluation (an argument, or a leaf of
+   *  SegmentEvaluator), and rethrow its exception, if any.
+   *  @param result The evaluation.
+   *  @return Its result.
+   *  @throws IOException
+   */
+  static QryResult join(Future<QryResult> result) throws IOException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while evaluating a query");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   *  Print the parallel evaluation statistics.
+   *  @return void
+   */
+  public synchronized void printStats() {
+    System.out.println("Parallel evaluation:  " + this.forkedOps + " operators forked " +
+                       this.forkedArgs + " arguments, " + this.joinedArgs +
+                       " evaluated by their parent");
+  }
+}
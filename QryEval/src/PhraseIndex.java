@@ -0,0 +1,382 @@
+/**
+ *  This class stores precomputed inverted lists of proximity operators,
+ *  e.g., #NEAR/1(obama family) and #WINDOW/8(obama family), so that
+ *  QryopIlNear and QryopIlWindow can read a list instead of joining the
+ *  positions of their arguments at query time.
+ *
+ *  The lists are computed offline by the main method.  It reads a
+ *  query log (a query file), finds the #NEAR and #WINDOW operators
+ *  whose arguments are all terms, and evaluates each operator that
+ *  occurs in at least minCount queries and whose rarest term has a df
+ *  of at least minDf, i.e., the hottest and most expensive joins.  The
+ *  lists are computed by the operators themselves, so a stored list is
+ *  the list that the operator would compute.  An operator is keyed by
+ *  its string form, e.g., "#NEAR/1( obama.body family.body )", which
+ *  holds the distance, the terms, their fields and their order.
+ *
+ *  The file is
+ *
+ *    header:      magic, format, index version, maxDoc
+ *    per list:    the docids, the offset of each document's first
+ *                 position (df + 1 offsets, so the last one is ctf),
+ *                 then the positions of each document
+ *    dictionary:  the number of lists, then key, field, offset, df
+ *                 and ctf of each list
+ *    trailer:     the offset of the dictionary
+ *
+ *  Usage:  java PhraseIndex indexPath queryFile outputFile [minCount [minDf]]
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.*;
+
+public class PhraseIndex {
+
+  private static final int FILE_MAGIC = 0x50485253;		// "PHRS"
+  private static final int FILE_FORMAT = 2;
+
+  private RandomAccessFile file;
+  private Map<String, Entry> dictionary = new HashMap<String, Entry>();
+
+  private long hits = 0;
+  private long misses = 0;
+
+  private static class Entry {
+    String field;
+    long offset;
+    int df;
+    long ctf;
+    IntBuffer data = null;	// mapped on first use
+  }
+
+  /**
+   *  Open a phrase index and read its dictionary.
+   *  @param reader The index.
+   *  @param path The phrase index file.
+   *  @throws IOException if the file is invalid or belongs to a
+   *  different version of the index.
+   */
+  public PhraseIndex(IndexReader reader, File path) throws IOException {
+    this.file = new RandomAccessFile(path, "r");
+
+    if ((this.file.readInt() != FILE_MAGIC) || (this.file.readInt() != FILE_FORMAT))
+      throw new IOException("Not a phrase index file:  " + path);
+
+    if ((this.file.readLong() != QryEval.indexVersion(reader)) ||
+        (this.file.readInt() != reader.maxDoc()))
+      throw new IOException("The phrase index file belongs to a different index:  " + path);
+
+    this.file.seek(this.file.length() - 8);
+    this.file.seek(this.file.readLong());
+
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(this.file.getFD()), 1 << 16));
+    int numLists = in.readInt();
+
+    for (int i = 0; i < numLists; i++) {
+      String key = in.readUTF();
+      Entry e = new Entry();
+
+      e.field = in.readUTF();
+      e.offset = in.readLong();
+      e.df = in.readInt();
+      e.ctf = in.readLong();
+      this.dictionary.put(key, e);
+    }
+  }
+
+  /**
+   *  @return The number of precomputed lists.
+   */
+  public int numLists() {
+    return this.dictionary.size();
+  }
+
+  /**
+   *  Get a cursor over the precomputed list of an operator.  A list is
+   *  mapped the first time it is read, and the mapping is shared by
+   *  later cursors.
+   *  @param key The operator's string form.
+   *  @return A cursor positioned before the first document, or null
+   *  if the operator's list was not precomputed.
+   *  @throws IOException
+   */
+  public PostingCursor cursor(String key) throws IOException {
+    Entry e = this.dictionary.get(key);
+
+    synchronized (this) {
+      if (e == null) {
+        this.misses ++;
+        return null;
+      }
+      this.hits ++;
+
+      if (e.data == null) {
+        long length = 4L * (2L * e.df + 1 + e.ctf);
+        ByteBuffer buf =
+          this.file.getChannel().map(FileChannel.MapMode.READ_ONLY, e.offset, length);
+        e.data = buf.asIntBuffer();
+      }
+    }
+
+    return new Cursor(e.data, e.field, e.df, e.ctf);
+  }
+
+  /**
+   *  Print the phrase index statistics.
+   *  @return void
+   */
+  public synchronized void printStats() {
+    System.out.println("Phrase index:  " + this.dictionary.size() + " lists, " +
+                       this.hits + " operators read precomputed lists, " +
+                       this.misses + " joined positions");
+  }
+
+  /**
+   *  A PostingCursor over a precomputed list.  advance() gallops over
+   *  the docids, like InvList.findDocid, and a posting's positions are
+   *  found from its position offset, like InvList's.
+   */
+  private static class Cursor extends PostingCursor {
+
+    private IntBuffer data;		// docids, position offsets, positions; read with absolute gets
+    private String field;
+    private int df;
+    private long ctf;
+    private int positionsStart;		// The index of the first position in data
+    private int n = -1;			// The current posting
+    private int nextPosition = 0;	// The next position in the current posting
+
+    Cursor(IntBuffer data, String field, int df, long ctf) {
+      this.data = data;
+      this.field = field;
+      this.df = df;
+      this.ctf = ctf;
+      this.positionsStart = 2 * df + 1;
+    }
+
+    public String field() {
+      return this.field;
+    }
+
+    public int df() {
+      return this.df;
+    }
+
+    public long ctf() {
+      return this.ctf;
+    }
+
+    public boolean hasPositions() {
+      return true;
+    }
+
+    public int docID() {
+      if (this.n < 0)
+        return -1;
+      if (this.n >= this.df)
+        return NO_MORE_DOCS;
+      return this.data.get(this.n);
+    }
+
+    public int nextDoc() {
+      if (this.n < this.df)
+        this.n++;
+      this.nextPosition = 0;
+      return docID();
+    }
+
+    public int advance(int target) {
+      if (docID() >= target)
+        return docID();
+
+      int from = Math.max(this.n, 0);
+
+      if (from < this.df && this.data.get(from) < target) {
+
+        //  Gallop.  data[lo] < target, and data[hi] >= target or hi >= df.
+
+        int lo = from;
+        int hi = from + 1;
+        int step = 1;
+
+        while (hi < this.df && this.data.get(hi) < target) {
+          lo = hi;
+          step <<= 1;
+          hi = (step < this.df - lo) ? lo + step : this.df;
+        }
+
+        //  Binary search between lo and hi.
+
+        while (hi - lo > 1) {
+          int mid = (lo + hi) >>> 1;
+
+          if (this.data.get(mid) < target)
+            lo = mid;
+          else
+            hi = mid;
+        }
+
+        from = hi;
+      }
+
+      this.n = from;
+      this.nextPosition = 0;
+      return docID();
+    }
+
+    public int freq() {
+      return this.data.get(this.df + this.n + 1) - this.data.get(this.df + this.n);
+    }
+
+    public int nextPosition() {
+      return this.data.get(this.positionsStart + this.data.get(this.df + this.n) +
+                           this.nextPosition++);
+    }
+  }
+
+  /**
+   *  Find the #NEAR and #WINDOW operators whose arguments are all
+   *  terms, and count the queries that use each one.
+   */
+  private static void findOperators(Qryop q, Map<String, Qryop> ops, Map<String, Integer> counts,
+                                    Set<String> seen) {
+
+    if (((q instanceof QryopIlNear) || (q instanceof QryopIlWindow)) && (q.args.size() > 1)) {
+      boolean allTerms = true;
+
+      for (int i = 0; i < q.args.size(); i++)
+        allTerms &= (q.args.get(i) instanceof QryopIlTerm);
+
+      if (allTerms) {
+        String key = q.toString();
+
+        if (seen.add(key)) {
+          Integer n = counts.get(key);
+          counts.put(key, (n == null) ? 1 : n + 1);
+          if (n == null)
+            ops.put(key, q);
+        }
+        return;
+      }
+    }
+
+    for (int i = 0; i < q.args.size(); i++)
+      findOperators(q.args.get(i), ops, counts, seen);
+  }
+
+  /**
+   *  Build a phrase index file.
+   *  @param args indexPath queryFile outputFile [minCount [minDf]]
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if ((args.length < 3) || (args.length > 5)) {
+      System.err.println("Usage:  java PhraseIndex indexPath queryFile outputFile [minCount [minDf]]");
+      System.exit(1);
+    }
+
+    int minCount = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+    int minDf = (args.length > 4) ? Integer.parseInt(args[4]) : 0;
+    long startTime = System.currentTimeMillis();
+
+    QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+
+    IndexReader reader = QryEval.READER;
+    RetrievalModel model = new RetrievalModelUnrankedBoolean();
+
+    //  Count the queries that use each operator.
+
+    Map<String, Qryop> ops = new LinkedHashMap<String, Qryop>();
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+
+    QryEval.loadAllQueries(args[1]);
+
+    for (Integer queryID : QryEval.queriesID) {
+      Qryop q = QryEval.parseQuery(QryEval.queryProcess(QryEval.queries.get(queryID), model), model);
+
+      if (q != null)
+        findOperators(q, ops, counts, new HashSet<String>());
+    }
+
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(args[2]), 1 << 16));
+    ByteArrayOutputStream dictBytes = new ByteArrayOutputStream();
+    DataOutputStream dict = new DataOutputStream(dictBytes);
+    int numLists = 0;
+    long numPostings = 0;
+    long offset = 0;
+
+    try {
+      out.writeInt(FILE_MAGIC);
+      out.writeInt(FILE_FORMAT);
+      out.writeLong(QryEval.indexVersion(reader));
+      out.writeInt(reader.maxDoc());
+      offset = 20;
+
+      for (Map.Entry<String, Qryop> op : ops.entrySet()) {
+        if (counts.get(op.getKey()) < minCount)
+          continue;
+
+        //  Skip cheap joins.
+
+        Qryop q = op.getValue();
+        int df = Integer.MAX_VALUE;
+
+        for (int i = 0; i < q.args.size(); i++) {
+          QryopIlTerm t = (QryopIlTerm) q.args.get(i);
+          df = Math.min(df, reader.docFreq(new Term(t.getField(), new BytesRef(t.getTerm()))));
+        }
+
+        if (df < minDf)
+          continue;
+
+        InvList list = q.evaluate(model).invertedList;
+
+        for (int n = 0; n < list.df; n++)
+          out.writeInt(list.getDocid(n));
+        int positionOffset = 0;
+
+        for (int n = 0; n < list.df; n++) {
+          out.writeInt(positionOffset);
+          positionOffset += list.getTf(n);
+        }
+        out.writeInt(positionOffset);
+
+        for (int n = 0; n < list.df; n++)
+          for (int j = 0; j < list.getTf(n); j++)
+            out.writeInt(list.getPosition(n, j));
+
+        dict.writeUTF(op.getKey());
+        dict.writeUTF(list.field);
+        dict.writeLong(offset);
+        dict.writeInt(list.df);
+        dict.writeLong(list.ctf);
+
+        offset += 4L * (2L * list.df + 1 + list.ctf);
+        numPostings += list.df;
+        numLists++;
+      }
+
+      out.writeInt(numLists);
+      dict.flush();
+      dictBytes.writeTo(out);
+      out.writeLong(offset);
+    } finally {
+      out.close();
+    }
+
+    System.out.println("Phrase index:  " + numLists + " lists of " + ops.size() +
+                       " operators, " + numPostings + " postings, written in " +
+                       (System.currentTimeMillis() - startTime) + " ms");
+  }
+}
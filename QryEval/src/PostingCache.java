@@ -0,0 +1,151 @@
+/**
+ *  This class implements a cache of inverted lists that is shared by
+ *  all of the queries in a batch.  Queries often repeat terms, and
+ *  decoding a long inverted list from the index is expensive, so
+ *  inverted lists are kept in memory until the cache exceeds its
+ *  size budget.  The least recently used inverted lists are evicted
+ *  first.
+ *
+ *  Inverted lists are keyed by (term, field, positions).  An inverted
+ *  list with positions can also satisfy a request for one without
+ *  positions.
+ *
+ *  Cached inverted lists are shared, so callers must not modify them.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class PostingCache {
+
+  private long maxBytes;
+  private long bytes = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  //  An access-ordered map, so iteration starts at the least
+  //  recently used inverted list.
+
+  private LinkedHashMap<String, InvList> lists =
+    new LinkedHashMap<String, InvList>(16, 0.75f, true);
+
+  /**
+   *  Constructor.
+   *  @param maxBytes The approximate number of bytes that cached
+   *  inverted lists may use.
+   */
+  public PostingCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   *  Get an inverted list from the cache, or fetch it from the index
+   *  and cache it.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @param field The field that the term occurs in.
+   *  @param positions True if the inverted list must have positions.
+   *  @return The inverted list.
+   *  @throws IOException
+   */
+  public InvList get(String term, String field, boolean positions)
+    throws IOException {
+
+    InvList list = lookup(term, field, positions);
+
+    if (list != null)
+      return list;
+
+    //  Fetch outside of the lock, so that other threads can use the
+    //  cache while a long inverted list is being decoded.
+
+    list = new InvList(term, field, positions);
+    put(term, field, positions, list);
+
+    return list;
+  }
+
+  /**
+   *  Find a cached inverted list, and update the hit/miss counters.
+   */
+  private synchronized InvList lookup(String term, String field, boolean positions) {
+
+    InvList list = this.lists.get(key(term, field, positions));
+
+    if ((list == null) && (! positions))
+      list = this.lists.get(key(term, field, true));
+
+    if (list != null)
+      this.hits ++;
+    else
+      this.misses ++;
+
+    return list;
+  }
+
+  /**
+   *  Add an inverted list to the cache, then evict the least recently
+   *  used inverted lists until the cache is within its budget.  An
+   *  inverted list that is bigger than the whole budget is not cached.
+   */
+  private synchronized void put(String term, String field, boolean positions,
+                                InvList list) {
+
+    long size = list.sizeInBytes();
+
+    if (size > this.maxBytes)
+      return;
+
+    InvList old = this.lists.put(key(term, field, positions), list);
+
+    if (old != null)
+      this.bytes -= old.sizeInBytes();
+
+    this.bytes += size;
+
+    Iterator<InvList> it = this.lists.values().iterator();
+
+    while ((this.bytes > this.maxBytes) && it.hasNext()) {
+      this.bytes -= it.next().sizeInBytes();
+      it.remove();
+      this.evictions ++;
+    }
+  }
+
+  private static String key(String term, String field, boolean positions) {
+    return (term + "." + field + (positions ? "+p" : ""));
+  }
+
+  /**
+   *  @return The number of requests that were answered from the cache.
+   */
+  public synchronized long getHits() {
+    return this.hits;
+  }
+
+  /**
+   *  @return The number of requests that had to read the index.
+   */
+  public synchronized long getMisses() {
+    return this.misses;
+  }
+
+  /**
+   *  Print the cache statistics.
+   *  @return void
+   */
+  public synchronized void printStats() {
+    long requests = this.hits + this.misses;
+
+    System.out.println("Posting cache:  " + this.hits + " hits, " +
+                       this.misses + " misses (" +
+                       ((requests == 0) ? 0 : (100 * this.hits / requests)) +
+                       "% hit rate), " + this.evictions + " evictions, " +
+                       this.lists.size() + " lists, " +
+                       (this.bytes / 1024L) + " KB of " +
+                       (this.maxBytes / 1024L) + " KB");
+  }
+}
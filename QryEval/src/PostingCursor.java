@@ -0,0 +1,94 @@
+/**
+ *  A PostingCursor iterates over the postings of an inverted list one
+ *  document at a time, in docid order, in the style of Lucene's
+ *  DocsAndPositionsEnum.  Query operators that consume inverted lists
+ *  read them through cursors, so an inverted list that comes straight
+ *  from the index does not have to be copied into memory before it is
+ *  used.  The cursor starts before the first document; call nextDoc
+ *  or advance to position it.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+import org.apache.lucene.search.DocIdSetIterator;
+
+public abstract class PostingCursor {
+
+  //  The docid returned when the cursor is exhausted.
+
+  public static final int NO_MORE_DOCS = DocIdSetIterator.NO_MORE_DOCS;
+
+  /**
+   *  @return The field that the inverted list belongs to.
+   */
+  public abstract String field();
+
+  /**
+   *  @return The number of documents in the inverted list.
+   */
+  public abstract int df();
+
+  /**
+   *  @return The total number of occurrences in the inverted list.
+   */
+  public abstract long ctf();
+
+  /**
+   *  @return true if nextPosition can be used.  Inverted lists that are
+   *  fetched only for scoring may not have positions.
+   */
+  public abstract boolean hasPositions();
+
+  /**
+   *  @return The current docid, -1 if the cursor is not positioned yet,
+   *  or NO_MORE_DOCS if it is exhausted.
+   */
+  public abstract int docID();
+
+  /**
+   *  Move to the next document.
+   *  @return The new current docid, or NO_MORE_DOCS.
+   *  @throws IOException
+   */
+  public abstract int nextDoc() throws IOException;
+
+  /**
+   *  Move to the first document whose docid is at least target.  The
+   *  cursor does not move if it is already there.
+   *  @param target The docid to look for.
+   *  @return The new current docid, or NO_MORE_DOCS.
+   *  @throws IOException
+   */
+  public abstract int advance(int target) throws IOException;
+
+  /**
+   *  @return The term frequency in the current document.
+   *  @throws IOException
+   */
+  public abstract int freq() throws IOException;
+
+  /**
+   *  Read the next position in the current document.  Each position
+   *  can be read once, and at most freq() positions can be read.
+   *  Throws UnsupportedOperationException if hasPositions() is false.
+   *  @return The next position.
+   *  @throws IOException
+   */
+  public abstract int nextPosition() throws IOException;
+
+  /**
+   *  Read all of the positions in the current document.
+   *  @return The positions, in increasing order.
+   *  @throws IOException
+   */
+  public int[] getPositions() throws IOException {
+    int[] positions = new int[freq()];
+
+    for (int j = 0; j < positions.length; j++)
+      positions[j] = nextPosition();
+
+    return positions;
+  }
+}
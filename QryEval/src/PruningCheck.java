@@ -0,0 +1,184 @@
+/**
+ *  This class checks that top-k evaluation (evaluation=daat) returns
+ *  the same documents as score lists, with and without pruning.  It
+ *  runs QryEval on a parameter file with evaluation=scorelist, then
+ *  with evaluation=daat and each daat:pruning method (none, maxscore
+ *  and bmw), and compares the trec_eval files, which hold the top 100
+ *  documents of each query.  The engines rank documents the same way
+ *  and pruning only skips documents that can't enter the top k, so the
+ *  files must be identical, scores included.
+ *
+ *  Each run is a separate JVM, because QryEval keeps its configuration
+ *  in static fields.  A run reads the parameter file with evaluation,
+ *  daat:pruning and the output files replaced, plus the parameters
+ *  given on the command line, e.g., daat:blockMaxFile=index.bmax or
+ *  segments:threads=4 (which the score list run ignores).  The output
+ *  and the log of each run are kept in a temporary directory.
+ *
+ *  Usage:  java PruningCheck paramFile [key=value ...]
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class PruningCheck {
+
+  //  The engine configurations.  The first one is the reference.
+
+  private static final String[][] RUNS = {
+    { "scorelist", "evaluation=scorelist" },
+    { "daat", "evaluation=daat", "daat:pruning=none" },
+    { "maxscore", "evaluation=daat", "daat:pruning=maxscore" },
+    { "bmw", "evaluation=daat", "daat:pruning=bmw" } };
+
+  /**
+   *  Run QryEval with a parameter file.
+   *  @param params The parameters.
+   *  @param dir The directory for the parameter file and the log.
+   *  @param name The name of the run.
+   *  @throws Exception if QryEval fails.
+   */
+  private static void run(Map<String, String> params, File dir, String name) throws Exception {
+    File paramFile = new File(dir, name + ".param");
+    File logFile = new File(dir, name + ".log");
+    PrintWriter out = new PrintWriter(new FileWriter(paramFile));
+
+    try {
+      for (Map.Entry<String, String> p : params.entrySet())
+        out.println(p.getKey() + "=" + p.getValue());
+    } finally {
+      out.close();
+    }
+
+    ProcessBuilder pb = new ProcessBuilder(
+      new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+      "-cp", System.getProperty("java.class.path"), "QryEval", paramFile.getPath());
+    pb.redirectErrorStream(true);
+
+    Process p = pb.start();
+    InputStream in = p.getInputStream();
+    OutputStream log = new FileOutputStream(logFile);
+
+    try {
+      byte[] buf = new byte[1 << 16];
+      int n;
+
+      while ((n = in.read(buf)) > 0)
+        log.write(buf, 0, n);
+    } finally {
+      log.close();
+      in.close();
+    }
+
+    if (p.waitFor() != 0)
+      throw new Exception("QryEval failed (" + name + "), see " + logFile);
+  }
+
+  /**
+   *  Compare two trec_eval files.
+   *  @return null if they are identical, otherwise the first
+   *  difference.
+   */
+  private static String compare(File expected, File actual) throws IOException {
+    BufferedReader e = new BufferedReader(new FileReader(expected));
+    BufferedReader a = new BufferedReader(new FileReader(actual));
+
+    try {
+      for (int n = 1; ; n++) {
+        String eLine = e.readLine();
+        String aLine = a.readLine();
+
+        if ((eLine == null) && (aLine == null))
+          return null;
+        if ((eLine == null) || !eLine.equals(aLine))
+          return "line " + n + ":  expected " + eLine + ", got " + aLine;
+      }
+    } finally {
+      e.close();
+      a.close();
+    }
+  }
+
+  /**
+   *  Run the engines and compare their results.
+   *  @param args paramFile [key=value ...]
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java PruningCheck paramFile [key=value ...]");
+      System.exit(1);
+    }
+
+    //  Read the parameters the way QryEval does, then add the extra ones.
+
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    Scanner scan = new Scanner(new File(args[0]));
+
+    while (scan.hasNextLine()) {
+      String[] pair = scan.nextLine().split("=");
+      if (pair.length == 2)
+        params.put(pair[0].trim(), pair[1].trim());
+    }
+    scan.close();
+
+    for (int i = 1; i < args.length; i++) {
+      String[] pair = args[i].split("=");
+      if (pair.length != 2) {
+        System.err.println("Error: Parameters must be key=value:  " + args[i]);
+        System.exit(1);
+      }
+      params.put(pair[0].trim(), pair[1].trim());
+    }
+
+    File dir = File.createTempFile("PruningCheck", "");
+    if (!dir.delete() || !dir.mkdir())
+      throw new IOException("Can't create " + dir);
+
+    //  Run each engine.  QryEval appends to its output files.
+
+    File[] results = new File[RUNS.length];
+    boolean same = true;
+
+    for (int i = 0; i < RUNS.length; i++) {
+      String name = RUNS[i][0];
+      Map<String, String> runParams = new LinkedHashMap<String, String>(params);
+
+      runParams.remove("evaluation");
+      runParams.remove("daat:pruning");
+      if (RUNS[i][1].equals("evaluation=scorelist"))
+        runParams.remove("segments:threads");		// daat only
+      for (int j = 1; j < RUNS[i].length; j++) {
+        String[] pair = RUNS[i][j].split("=");
+        runParams.put(pair[0], pair[1]);
+      }
+
+      results[i] = new File(dir, name + ".teIn");
+      runParams.put("trecEvalOutputPath", results[i].getPath());
+      if (runParams.containsKey("fbExpansionQueryFile"))
+        runParams.put("fbExpansionQueryFile", new File(dir, name + ".fbq").getPath());
+
+      long startTime = System.currentTimeMillis();
+      run(runParams, dir, name);
+
+      String status = "reference";
+
+      if (i > 0) {
+        String diff = compare(results[0], results[i]);
+        same &= (diff == null);
+        status = (diff == null) ? "same" : "DIFFERENT, " + diff;
+      }
+
+      System.out.println(name + ":  " + status + " (" +
+                         (System.currentTimeMillis() - startTime) + " ms)");
+    }
+
+    System.out.println("Results in " + dir);
+
+    if (!same)
+      System.exit(1);
+  }
+}
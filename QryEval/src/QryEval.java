@@ -11,6 +11,7 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -45,6 +46,43 @@ public class QryEval {
   }
   
   static DocLengthStore docLenStore;
+
+  // Collection statistics, read once when the index is opened.
+  static CollectionStats collectionStats;
+
+  // Docid map settings.  The map is built on first use, if enabled.
+  static String docIdMapMode = null;	// null, "memory" or "mmap"
+  static File docIdMapFile = null;
+  private static DocIdMap docIdMap = null;
+
+  // Evaluate query trees into score lists (false), or one document at
+  // a time into a top-k collector (true).
+  static boolean evaluateDaaT = false;
+  static String pruning = "none";	// top-k pruning for evaluation=daat
+  static long queryTime = 0;	// nanoseconds evaluating queries, summed over queries
+  static long docsScored = 0;	// documents offered to top-k collectors
+
+  // Per-block score bounds for daat:pruning=bmw, or null if there are none.
+  static BlockMaxIndex blockMaxIndex = null;
+
+  // Precomputed lists of proximity operators, or null if there are none.
+  static PhraseIndex phraseIndex = null;
+
+  // Inverted lists shared across queries, or null if caching is disabled.
+  static PostingCache postingCache = null;
+
+  // Results of subtrees shared across queries, or null if caching is disabled.
+  static ResultCache resultCache = null;
+
+  // Query rewrites applied before evaluation, or null if there are none.
+  static QryOptimizer optimizer = null;
+
+  // Evaluates expensive operator arguments in parallel, or null if disabled.
+  static ParallelEvaluator parallelEvaluator = null;
+
+  // Evaluates queries on each segment in parallel (evaluation=daat), or
+  // null if disabled.
+  static SegmentEvaluator segmentEvaluator = null;
   
   public static ArrayList<Integer> queriesID = new ArrayList<Integer>();
   // use a hashmap to relate query IDs and queries
@@ -91,8 +129,45 @@ public class QryEval {
       System.exit(1);
     }
     
-    // initialize doc length store
-    docLenStore = new DocLengthStore(READER);
+    collectionStats = new CollectionStats(READER);
+
+    // optional docid map, e.g., docids:map=mmap
+    if (params.containsKey("docids:map")) {
+      docIdMapMode = params.get("docids:map").toLowerCase();
+      if (!docIdMapMode.equals("memory") && !docIdMapMode.equals("mmap"))
+        fatalError("Error: docids:map must be memory or mmap.");
+      docIdMapFile = new File(params.containsKey("docids:file") ?
+                              params.get("docids:file") :
+                              new File(params.get("indexPath"), "docids.map").getPath());
+    }
+
+    // initialize doc length store, e.g., docLengths:mode=preload
+    if (params.containsKey("docLengths:mode")) {
+      DocLengthStore.Mode mode = null;
+      try {
+        mode = DocLengthStore.Mode.valueOf(params.get("docLengths:mode").toUpperCase());
+      } catch (IllegalArgumentException e) {
+        fatalError("Error: docLengths:mode must be index, preload or mmap.");
+      }
+      File sidecarDir = new File(params.containsKey("docLengths:dir") ?
+                                 params.get("docLengths:dir") : params.get("indexPath"));
+      docLenStore = new DocLengthStore(READER, mode, sidecarDir);
+      docLenStore.printStats();
+    } else
+      docLenStore = new DocLengthStore(READER);
+
+    // optional cache of inverted lists, e.g., cache:postingsMB=256
+    if (params.containsKey("cache:postingsMB")) {
+      long cacheMB = Long.parseLong(params.get("cache:postingsMB"));
+      if (cacheMB > 0)
+        postingCache = new PostingCache(cacheMB * 1024L * 1024L);
+    }
+    // optional cache of subtree results, e.g., cache:resultsMB=256
+    if (params.containsKey("cache:resultsMB")) {
+      long cacheMB = Long.parseLong(params.get("cache:resultsMB"));
+      if (cacheMB > 0)
+        resultCache = new ResultCache(cacheMB * 1024L * 1024L);
+    }
     
     /** Number of Docs in this Index*/
    // int N = READER.numDocs();
@@ -122,6 +197,10 @@ public class QryEval {
         System.err.println(usage);
         System.exit(1);
       } 
+      // optional log-space scoring, e.g., Indri:logSpace=true
+      if (params.containsKey("Indri:logSpace") &&
+              !model.setParameter("logSpace", params.get("Indri:logSpace")))
+        fatalError("Error: Indri:logSpace must be true or false.");
     } else if (algorithm.equalsIgnoreCase("letor")) {
       letor = new LearnToRank(params);
       model = new RetrievalModelBMxx();
@@ -144,62 +223,125 @@ public class QryEval {
     }
     loadAllQueries(params.get("queryFilePath"));
 
+    // evaluation engine, e.g., evaluation=daat
+    if (params.containsKey("evaluation")) {
+      String engine = params.get("evaluation");
+      if (engine.equalsIgnoreCase("daat"))
+        evaluateDaaT = true;
+      else if (!engine.equalsIgnoreCase("scorelist"))
+        fatalError("Error: evaluation must be scorelist or daat.");
+    }
+    if (params.containsKey("daat:pruning")) {
+      pruning = params.get("daat:pruning").toLowerCase();
+      if (!pruning.equals("none") && !pruning.equals("maxscore") && !pruning.equals("bmw"))
+        fatalError("Error: daat:pruning must be none, maxscore or bmw.");
+    }
+    // segment parallel evaluation, e.g., segments:threads=8
+    if (params.containsKey("segments:threads")) {
+      int threads = Integer.parseInt(params.get("segments:threads"));
+      if (threads > 0) {
+        if (!evaluateDaaT)
+          fatalError("Error: segments:threads requires evaluation=daat.");
+        segmentEvaluator = new SegmentEvaluator(READER, threads);
+        System.out.println("Segments:  " + segmentEvaluator.numLeaves() + " leaves");
+      }
+    }
+    // block bounds for bmw, built by BlockMaxIndex, e.g., daat:blockMaxFile=index.bmax
+    if (params.containsKey("daat:blockMaxFile")) {
+      try {
+        blockMaxIndex = new BlockMaxIndex(READER, new File(params.get("daat:blockMaxFile")));
+      } catch (IOException e) {
+        fatalError("Error: " + e.getMessage());
+      }
+      System.out.println("Block bounds:  " + blockMaxIndex.numTerms() + " terms, blocks of "
+              + blockMaxIndex.blockSize() + " postings");
+    }
+    // precomputed #NEAR and #WINDOW lists, built by PhraseIndex, e.g., phrases:file=index.phr
+    if (params.containsKey("phrases:file")) {
+      try {
+        phraseIndex = new PhraseIndex(READER, new File(params.get("phrases:file")));
+      } catch (IOException e) {
+        fatalError("Error: " + e.getMessage());
+      }
+      System.out.println("Phrase index:  " + phraseIndex.numLists() + " precomputed lists");
+    }
+    // query rewrites, e.g., optimizer=dedupe,fold,reorder,share or optimizer=all
+    if (params.containsKey("optimizer")) {
+      try {
+        optimizer = new QryOptimizer(params.get("optimizer"));
+      } catch (IllegalArgumentException e) {
+        fatalError("Error: optimizer must list dedupe, fold, reorder and share, or be all or none.");
+      }
+      if (!optimizer.isEnabled())
+        optimizer = null;
+    }
+    // parallel evaluation of the arguments of a query operator, e.g.,
+    // parallel:threads=4 parallel:minPostings=100000
+    if (params.containsKey("parallel:threads")) {
+      int threads = Integer.parseInt(params.get("parallel:threads"));
+      long minPostings = 100000;
+      if (params.containsKey("parallel:minPostings"))
+        minPostings = Long.parseLong(params.get("parallel:minPostings"));
+      if (minPostings < 0)
+        fatalError("Error: parallel:minPostings must be at least 0.");
+      if (threads > 0)
+        parallelEvaluator = new ParallelEvaluator(threads, minPostings);
+    }
+
     ArrayList<ScoreList.ScoreListEntry[]> letorResult = new ArrayList<ScoreList.ScoreListEntry[]>();
     ArrayList<Integer> docNum = new ArrayList<Integer>();
-    // evaluate retrieval algorithm
-    for (Integer queryID : queriesID) {
-      /*
-       * add query expansion for Indri
-       */
-      if (params.containsKey("fb") && params.get("fb").equalsIgnoreCase("true")) {
-        ArrayList<Integer> topNDocID = null ;
-        ArrayList<Double> scores = null;
-        int topNDocs = Integer.parseInt(params.get("fbDocs"));
-        double fbMu = Double.parseDouble(params.get("fbMu"));
-        int topNTerms = Integer.parseInt(params.get("fbTerms"));
-        double originalWeight = Double.parseDouble(params.get("fbOrigWeight"));
-        if (params.containsKey("fbInitialRankingFile")) {
-          @SuppressWarnings("rawtypes")
-          ArrayList<ArrayList> result = getTopDocId(params.get("fbInitialRankingFile"), queryID, topNDocs);
-          topNDocID = result.get(0);
-          scores = result.get(1);
-        }
-        else {
-          Qryop operation = parseQuery(queryProcess(queries.get(queryID), model), model);// retrieve first operation
-          ScoreList.ScoreListEntry[] topNScoreList = getTopNDocuments(operation.evaluate(model), topNDocs);
-          topNDocID = new ArrayList<Integer>();
-          scores = new ArrayList<Double>();
-          for (int i = 0; i < topNScoreList.length; i++) {
-            topNDocID.add(topNScoreList[i].getDocid());
-            scores.add(topNScoreList[i].getScore());
+    // evaluate retrieval algorithm, e.g., batch:threads=8 evaluates 8 queries at a time
+    int numThreads = 1;
+    if (params.containsKey("batch:threads")) {
+      numThreads = Integer.parseInt(params.get("batch:threads"));
+      if (numThreads < 1)
+        fatalError("Error: batch:threads must be at least 1.");
+    }
+
+    if (numThreads == 1) {
+      for (Integer queryID : queriesID) {
+        long queryStartTime = System.nanoTime();
+        QueryOutput output = evaluateQuery(queryID, queries.get(queryID), model, params);
+        addQueryTime(System.nanoTime() - queryStartTime);
+        writeQueryOutput(output, letor, params, letorResult, docNum);
+      }
+    } else {
+      // Each query is parsed into its own query tree, so the workers
+      // share only the index and the caches.  The results are written
+      // by this thread, in query order, as they become available.
+      long batchStartTime = System.nanoTime();
+      final RetrievalModel batchModel = model;
+      final Map<String, String> batchParams = params;
+      ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+      ArrayList<Future<QueryOutput>> outputs = new ArrayList<Future<QueryOutput>>();
+
+      for (Integer queryID : queriesID) {
+        final int id = queryID;
+        final String query = queries.get(queryID);
+
+        outputs.add(workers.submit(new Callable<QueryOutput>() {
+          public QueryOutput call() throws Exception {
+            long queryStartTime = System.nanoTime();
+            QueryOutput output = evaluateQuery(id, query, batchModel, batchParams);
+            addQueryTime(System.nanoTime() - queryStartTime);
+            return output;
           }
-        }
-        QryExpansion qryExp = new QryExpansion(topNDocID, scores, fbMu, topNTerms);
-        String learnedQuery = qryExp.evaluate(model);
-        writeExpansionQueryFile(params.get("fbExpansionQueryFile"), queryID, learnedQuery);
-       
-        // update query
-        String newQuery = "#WAND(" + originalWeight + " " + queryProcess(queries.get(queryID), model) +
-                " " + (1-originalWeight) + " " + learnedQuery + ")";
-        queries.put(queryID, newQuery);
+        }));
       }
-      
-      /************************************************************************/
-      Qryop operation = parseQuery(queryProcess(queries.get(queryID), model), model);// retrieve first operation
-      System.out.println(queryID + "\t" + queries.get(queryID));
-      System.out.println("Parsed Query: " + operation.toString());
-      // printResults(queryID, operation.evaluate(model));
-      
-      /****************************Learn To Rank*******************************/
-      if (letor != null) {
-        QryResult qryRes = operation.evaluate(model);
-        ScoreList.ScoreListEntry[] topRank = getTopNDocuments(qryRes , 100);
-        letor.evaluate(topRank, params, queryID);
-        letorResult.add(topRank);
-        docNum.add(topRank.length);
+
+      try {
+        for (int i = 0; i < outputs.size(); i++) {
+          writeQueryOutput(outputs.get(i).get(), letor, params, letorResult, docNum);
+          outputs.set(i, null);
+        }
+      } catch (ExecutionException e) {
+        workers.shutdownNow();
+        throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
       }
-      else 
-        writeTrecEvalFile(params.get("trecEvalOutputPath"), queryID, operation.evaluate(model));
+      workers.shutdown();
+      long batchTime = System.nanoTime() - batchStartTime;
+      System.out.println("Batch:  " + outputs.size() + " queries, " + numThreads + " threads, "
+              + (batchTime / 1000000L) + " ms wall time");
     }
     if (letor != null) {
       letor.classify(params);
@@ -225,12 +367,146 @@ public class QryEval {
       }
     }
 
+    System.out.println("Query time (" + (evaluateDaaT ? "daat" : "scorelist") + "): "
+            + (queryTime / 1000000L) + " ms");
+    if (evaluateDaaT)
+      System.out.println("Documents scored (pruning " + pruning + "): " + docsScored);
+
+    if (postingCache != null)
+      postingCache.printStats();
+    if (resultCache != null)
+      resultCache.printStats();
+    if (phraseIndex != null)
+      phraseIndex.printStats();
+    if (optimizer != null)
+      optimizer.printStats();
+    if (parallelEvaluator != null)
+      parallelEvaluator.printStats();
+    if (segmentEvaluator != null)
+      segmentEvaluator.printStats();
+
     printMemoryUsage(true);
     long endTime = System.currentTimeMillis();
     System.out.println("Total running time: " + (endTime - startTime)/1000 + "s.");
 
   }
   
+  /**
+   * The result of evaluating one query. Queries can be evaluated in parallel, so the results are
+   * kept until writeQueryOutput writes them in query order.
+   */
+  static class QueryOutput {
+    int queryID;
+    String query; // the query that was evaluated
+    String parsedQuery;
+    String expansionQuery = null; // learned by relevance feedback, or null
+    ScoreList.ScoreListEntry[] topRank; // the best 100 documents
+  }
+
+  /**
+   * Evaluate one query, with relevance feedback if it is enabled. Nothing is written, and no
+   * global state is changed, so queries can be evaluated in parallel.
+   * 
+   * @param queryID
+   *          The query's id.
+   * @param query
+   *          The query.
+   * @param model
+   *          A retrieval model that controls how the query is evaluated.
+   * @param params
+   *          The parameters.
+   * @return The query's result.
+   * @throws Exception
+   */
+  @SuppressWarnings("unchecked")
+  static QueryOutput evaluateQuery(int queryID, String query, RetrievalModel model,
+          Map<String, String> params) throws Exception {
+    QueryOutput output = new QueryOutput();
+    output.queryID = queryID;
+    /*
+     * add query expansion for Indri
+     */
+    if (params.containsKey("fb") && params.get("fb").equalsIgnoreCase("true")) {
+      ArrayList<Integer> topNDocID = null ;
+      ArrayList<Double> scores = null;
+      int topNDocs = Integer.parseInt(params.get("fbDocs"));
+      double fbMu = Double.parseDouble(params.get("fbMu"));
+      int topNTerms = Integer.parseInt(params.get("fbTerms"));
+      double originalWeight = Double.parseDouble(params.get("fbOrigWeight"));
+      if (params.containsKey("fbInitialRankingFile")) {
+        @SuppressWarnings("rawtypes")
+        ArrayList<ArrayList> result = getTopDocId(params.get("fbInitialRankingFile"), queryID, topNDocs);
+        topNDocID = result.get(0);
+        scores = result.get(1);
+      }
+      else {
+        Qryop operation = parseQuery(queryProcess(query, model), model);// retrieve first operation
+        ScoreList.ScoreListEntry[] topNScoreList = getTopNDocuments(evaluate(operation, model, topNDocs), topNDocs);
+        topNDocID = new ArrayList<Integer>();
+        scores = new ArrayList<Double>();
+        for (int i = 0; i < topNScoreList.length; i++) {
+          topNDocID.add(topNScoreList[i].getDocid());
+          // expansion weighs documents by probability, not log probability
+          if (model instanceof RetrievalModelIndri && ((RetrievalModelIndri) model).isLogSpace())
+            scores.add(Math.exp(topNScoreList[i].getScore()));
+          else
+            scores.add(topNScoreList[i].getScore());
+        }
+      }
+      QryExpansion qryExp = new QryExpansion(topNDocID, scores, fbMu, topNTerms);
+      output.expansionQuery = qryExp.evaluate(model);
+     
+      // update query
+      query = "#WAND(" + originalWeight + " " + queryProcess(query, model) +
+              " " + (1-originalWeight) + " " + output.expansionQuery + ")";
+    }
+    
+
+    Qryop operation = parseQuery(queryProcess(query, model), model);// retrieve first operation
+    output.query = query;
+    output.parsedQuery = operation.toString();
+    output.topRank = getTopNDocuments(evaluate(operation, model, 100), 100);
+    return output;
+  }
+
+  /**
+   * Write the result of one query: the expansion query, the ranking (or for learning to rank,
+   * its features), and the query to stdout.
+   * 
+   * @param output
+   *          The query's result.
+   * @param letor
+   *          Learning to rank, or null.
+   * @param params
+   *          The parameters.
+   * @param letorResult
+   *          The rankings that learning to rank will rescore.
+   * @param docNum
+   *          The lengths of those rankings.
+   * @throws Exception
+   */
+  static void writeQueryOutput(QueryOutput output, LearnToRank letor, Map<String, String> params,
+          ArrayList<ScoreList.ScoreListEntry[]> letorResult, ArrayList<Integer> docNum)
+          throws Exception {
+    int queryID = output.queryID;
+
+    if (output.expansionQuery != null) {
+      writeExpansionQueryFile(params.get("fbExpansionQueryFile"), queryID, output.expansionQuery);
+      queries.put(queryID, output.query);
+    }
+
+    System.out.println(queryID + "\t" + output.query);
+    System.out.println("Parsed Query: " + output.parsedQuery);
+
+    if (letor != null) {
+      letor.evaluate(output.topRank, params, queryID);
+      letorResult.add(output.topRank);
+      docNum.add(output.topRank.length);
+    }
+    else 
+      writeTrecEvalFile(params.get("trecEvalOutputPath"), queryID, output.topRank);
+  }
+
   /**
    * Get top N documents' internal ID
    * @param rankingFile
@@ -284,6 +560,19 @@ public class QryEval {
     System.exit(1);
   }
 
+  /**
+   * Get the version of an index. Sidecar files (e.g., the docid map and the block-max index)
+   * record the version of the index they were built from, so that files of another index are
+   * not used.
+   * 
+   * @param reader
+   *          The index.
+   * @return The index version, or 0 if the reader doesn't read a directory.
+   */
+  static long indexVersion(IndexReader reader) {
+    return (reader instanceof DirectoryReader) ? ((DirectoryReader) reader).getVersion() : 0;
+  }
+
   /**
    * Get the external document id for a document specified by an internal document id. If the
    * internal id doesn't exists, returns null.
@@ -293,6 +582,9 @@ public class QryEval {
    * @throws IOException
    */
   static String getExternalDocid(int iid) throws IOException {
+    if (docIdMapMode != null)
+      return getDocIdMap().getExternalDocid(iid);
+
     Document d = QryEval.READER.document(iid);
     String eid = d.get("externalId");
     return eid;
@@ -308,6 +600,13 @@ public class QryEval {
    * @throws Exception
    */
   static int getInternalDocid(String externalId) throws Exception {
+    if (docIdMapMode != null) {
+      int iid = getDocIdMap().getInternalDocid(externalId);
+      if (iid < 0)
+        throw new Exception("External id not found.");
+      return iid;
+    }
+
     Query q = new TermQuery(new Term("externalId", externalId));
 
     IndexSearcher searcher = new IndexSearcher(QryEval.READER);
@@ -322,6 +621,74 @@ public class QryEval {
     }
   }
   
+  /**
+   * Count the documents that a top-k collector was offered. Queries can be evaluated in parallel.
+   * 
+   * @param n
+   *          The number of documents.
+   */
+  static synchronized void addDocsScored(long n) {
+    docsScored += n;
+  }
+
+  /**
+   * Add the time spent evaluating a query. Queries can be evaluated in parallel, so with
+   * batch:threads the total is more than the wall time.
+   * 
+   * @param nanos
+   *          The evaluation time, in nanoseconds.
+   */
+  static synchronized void addQueryTime(long nanos) {
+    queryTime += nanos;
+  }
+
+  /**
+   * Evaluate a query. With evaluation=daat, a query tree that returns a score list is evaluated
+   * one document at a time, and only the best numDocs documents are kept; the ranking is the same.
+   * If query rewrites are enabled, the query is optimized first, and if results are cached, its
+   * subtrees are shared with other queries.
+   * 
+   * @param operation
+   *          The query tree.
+   * @param model
+   *          A retrieval model that controls how the query is evaluated.
+   * @param numDocs
+   *          The number of documents that the caller will use.
+   * @return The result of evaluating the query.
+   * @throws IOException
+   */
+  static QryResult evaluate(Qryop operation, RetrievalModel model, int numDocs)
+          throws IOException {
+    if (optimizer != null)
+      operation = optimizer.optimize(operation, model);
+    if (resultCache != null)
+      resultCache.wrap(operation);
+    if (evaluateDaaT && operation instanceof QryopSl && segmentEvaluator != null)
+      return segmentEvaluator.evaluateTopK(operation, model, numDocs);
+    if (evaluateDaaT && operation instanceof QryopSl)
+      return QryPlan.compile(operation, model).evaluateTopK(numDocs);
+    return operation.evaluate(model);
+  }
+
+  /**
+   * Get the docid map, building or loading it on first use.
+   * 
+   * @return The docid map.
+   * @throws IOException
+   */
+  static synchronized DocIdMap getDocIdMap() throws IOException {
+    if (docIdMap == null) {
+      long startTime = System.currentTimeMillis();
+      if (docIdMapMode.equals("mmap"))
+        docIdMap = new DocIdMap(READER, docIdMapFile);
+      else
+        docIdMap = new DocIdMap(READER);
+      System.out.println("Docid map:  " + docIdMapMode + ", ready in "
+              + (System.currentTimeMillis() - startTime) + " ms");
+    }
+    return docIdMap;
+  }
+
   static void loadAllQueries(String queryFilePath) throws Exception {
     // load all queries
     Scanner scan = new Scanner(new File(queryFilePath));
@@ -488,6 +855,13 @@ public class QryEval {
       return null;
     }
     //System.out.println("Parsed Query: " + currentOp.toString());
+
+    // Only #NEAR and #WINDOW read positions, so other inverted lists
+    // can be fetched with docids and tfs only.
+
+    if (currentOp != null)
+      currentOp.setPositionsNeeded(false);
+
     return currentOp;
   }
 
@@ -547,47 +921,10 @@ public class QryEval {
    *          fiel path
    * @param queryID
    *          query ID for this query
-   * @param result
-   *          Result object generated by {@link Qryop#evaluate()}.
+   * @param topRank
+   *          The ranked documents, best first.
+   * @throws Exception
    */
-  static void writeTrecEvalFile(String filePath, int queryID, 
-          QryResult result) {
-
-    BufferedWriter writer = null;
-    File file = new File(filePath);
-    try {
-      writer = new BufferedWriter(new FileWriter(file, true));
-      //writer = new BufferedWriter(new FileWriter(file, false));
-      // use false and true to control append function. false is used for debugging
-      // false : overwrite the file; true : append mode, no overwrite
-      int numDocs = Math.min(100, result.docScores.scores.size());
-      if (result.docScores.scores.size() == 0)
-        writer.write(queryID + "\t" + "Q0" + "\t" + "dummy" + "\t" + "1" + "\t" + "0" + "\t"
-                + "run-1\n");
-      else {
-        // get best 100 match
-        // put 100 matches in a PriorityQueue, traverse the rest matches, if any
-        // match is bigger than the smallest one in the PQ, remove the head of PQ
-        // add this bigger one
-        ScoreList.ScoreListEntry[] topRank = getTopNDocuments(result, numDocs);
-        // Long endTime = System.currentTimeMillis();
-        // System.out.println("sort result : " + (endTime - startTime)/1000 + "s");
-        for (int i = 0; i < numDocs; i++) {
-          writer.write(queryID + "\t" + "Q0" + "\t");
-          writer.write(getExternalDocid(topRank[i].getDocid()) + "\t" + (i + 1) + "\t"
-                  + topRank[i].getScore() + "\t" + "run-1\n");
-        }
-      }
-    } catch (Exception e) {
-      e.printStackTrace();
-    } finally {
-      try {
-        writer.close();
-      } catch (Exception e) {
-      }
-    }
-  }
-  
   static void writeTrecEvalFile(String filePath, int queryID, 
           ScoreList.ScoreListEntry[] topRank) throws Exception {
     File file = new File(filePath.trim());
@@ -126,7 +126,7 @@ public class QryExpansion {
     long docLen, collectionLength, collectionTermFreq;
     float maxLikeliEstim;
     String stemString;
-    collectionLength = QryEval.READER.getSumTotalTermFreq("body");// collection length
+    collectionLength = QryEval.collectionStats.sumTotalTermFreq("body");// collection length
     // traverse all documents, build a hashmap contains all terms 
     for (int i = 0; i < docIds.size(); i++) {
       TermVector termVec = new TermVector(docIds.get(i), "body");
@@ -0,0 +1,412 @@
+/**
+ *  This class rewrites a parsed query before it is evaluated, so that
+ *  work the query repeats is done once.  Each rewrite is enabled by
+ *  the optimizer parameter, e.g., optimizer=dedupe,fold,reorder,share
+ *  (or all, or none):
+ *
+ *  fold:     Merge repeated arguments of an operator.  Boolean #AND
+ *            and #OR keep one copy, because min and max don't change;
+ *            an Indri #AND becomes a #WAND whose weights count the
+ *            copies; #WAND and #WSUM add up the copies' weights.  #SUM
+ *            has no argument weights, so its copies are left to dedupe.
+ *  reorder:  Sort the arguments of Boolean #AND and #OR by estimated
+ *            document frequency, rarest first.  The order doesn't
+ *            change their scores, and equivalent subtrees get the
+ *            same form, so dedupe finds them.  Other operators are
+ *            left alone:  #NEAR depends on the order, and the order of
+ *            floating point sums and products can change the scores.
+ *  dedupe:   Evaluate a subtree that occurs more than once in a query
+ *            only once (QryopSlShared, QryopIlShared).
+ *  share:    Fetch the inverted list of a term that several positional
+ *            operators read only once, e.g., the terms of the #NEAR
+ *            and #WINDOW parts of a sequential dependency query.
+ *
+ *  The rewritten query returns the same documents, and except for
+ *  fold (which can change the last bits of a score) the same scores.
+ *  The optimizer counts what each rewrite did, and estimates the work
+ *  saved as the number of postings that aren't read again;
+ *  printStats reports the totals for all queries.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+public class QryOptimizer {
+
+  private boolean dedupe = false;
+  private boolean fold = false;
+  private boolean reorder = false;
+  private boolean share = false;
+
+  //  Statistics, for all queries.
+
+  private long queries = 0;
+  private long foldedArgs = 0;		// arguments merged into another copy
+  private long reorderedOps = 0;	// operators whose arguments moved
+  private long sharedSubtrees = 0;	// subtree evaluations avoided
+  private long sharedFetches = 0;	// term fetches avoided
+  private long postingsSaved = 0;	// postings of the avoided work
+
+  /**
+   *  @param passes A comma-separated list of rewrites:  dedupe, fold,
+   *  reorder and share, or all, or none.
+   *  @throws IllegalArgumentException if a rewrite is unknown.
+   */
+  public QryOptimizer(String passes) {
+    String[] names = passes.toLowerCase().split(",");
+
+    for (int i = 0; i < names.length; i++) {
+      String name = names[i].trim();
+
+      if (name.equals("dedupe"))
+        this.dedupe = true;
+      else if (name.equals("fold"))
+        this.fold = true;
+      else if (name.equals("reorder"))
+        this.reorder = true;
+      else if (name.equals("share"))
+        this.share = true;
+      else if (name.equals("all"))
+        this.dedupe = this.fold = this.reorder = this.share = true;
+      else if (!name.equals("none"))
+        throw new IllegalArgumentException("Unknown query rewrite: " + name);
+    }
+  }
+
+  /**
+   *  @return true if any rewrite is enabled.
+   */
+  public boolean isEnabled() {
+    return this.dedupe || this.fold || this.reorder || this.share;
+  }
+
+  /**
+   *  Rewrite a query for a retrieval model.  The query's operators
+   *  may be modified, so the query should not be evaluated with a
+   *  different model afterwards.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return The rewritten query.
+   *  @throws IOException
+   */
+  public Qryop optimize(Qryop q, RetrievalModel r) throws IOException {
+    Stats stats = new Stats();
+
+    q = rewrite(q, r, stats);
+
+    if (this.dedupe || this.share) {
+      HashMap<String, Integer> counts = new HashMap<String, Integer>();
+      count(q, false, false, counts);
+      q = replace(q, false, false, counts, new HashMap<String, Qryop>(), stats);
+    }
+
+    // A shared list needs positions if any of its readers does.
+
+    q.setPositionsNeeded(false);
+
+    synchronized (this) {
+      this.queries++;
+      this.foldedArgs += stats.foldedArgs;
+      this.reorderedOps += stats.reorderedOps;
+      this.sharedSubtrees += stats.sharedSubtrees;
+      this.sharedFetches += stats.sharedFetches;
+      this.postingsSaved += stats.postingsSaved;
+    }
+
+    return q;
+  }
+
+  /**
+   *  Print the statistics.
+   */
+  public synchronized void printStats() {
+    System.out.println("Query optimizer:  " + this.queries + " queries, " +
+                       this.foldedArgs + " folded arguments, " +
+                       this.reorderedOps + " reordered operators, " +
+                       this.sharedSubtrees + " shared subtrees, " +
+                       this.sharedFetches + " shared term fetches, " +
+                       this.postingsSaved + " postings not read again");
+  }
+
+  /**
+   *  The statistics of one query, and the document frequencies that
+   *  were looked up for it.
+   */
+  private static class Stats {
+    long foldedArgs = 0;
+    long reorderedOps = 0;
+    long sharedSubtrees = 0;
+    long sharedFetches = 0;
+    long postingsSaved = 0;
+    HashMap<String, Integer> df = new HashMap<String, Integer>();
+  }
+
+  /**
+   *  Fold and reorder a subtree, bottom-up.  Score list operators wrap
+   *  their arguments first (see QryopSl.wrapScoreArgs), so that
+   *  repeated terms are shared as score lists.
+   */
+  private Qryop rewrite(Qryop q, RetrievalModel r, Stats stats) throws IOException {
+
+    for (int i = 0; i < q.args.size(); i++)
+      q.args.set(i, rewrite(q.args.get(i), r, stats));
+
+    if (q instanceof QryopSl)
+      ((QryopSl) q).wrapScoreArgs();
+
+    if (this.fold)
+      q = fold(q, r, stats);
+
+    if (this.reorder && isBoolean(r) &&
+        ((q instanceof QryopSlAnd) || (q instanceof QryopSlOr)))
+      reorder(q, stats);
+
+    return q;
+  }
+
+  private static boolean isBoolean(RetrievalModel r) {
+    return (r instanceof RetrievalModelUnrankedBoolean) ||
+           (r instanceof RetrievalModelRankedBoolean);
+  }
+
+  /**
+   *  Merge the repeated arguments of an operator.
+   */
+  private Qryop fold(Qryop q, RetrievalModel r, Stats stats) throws IOException {
+
+    if (isBoolean(r) && ((q instanceof QryopSlAnd) || (q instanceof QryopSlOr))) {
+      HashSet<String> seen = new HashSet<String>();
+
+      for (int i = 0; i < q.args.size(); )
+        if (seen.add(q.args.get(i).toString()))
+          i++;
+        else {
+          stats.foldedArgs++;
+          stats.postingsSaved += postings(q.args.remove(i), stats);
+        }
+
+      return q;
+    }
+
+    if (!(r instanceof RetrievalModelIndri))
+      return q;
+
+    // Indri #AND weighs its arguments equally, so n copies of an
+    // argument are one argument with n times the weight.
+
+    if (q instanceof QryopSlAnd) {
+      if (new HashSet<String>(keys(q)).size() == q.args.size())
+        return q;
+
+      QryopSlWAnd wand = new QryopSlWAnd();
+      for (int i = 0; i < q.args.size(); i++) {
+        wand.add(q.args.get(i));
+        wand.addWeight(1.0f);
+      }
+      q = wand;
+    }
+
+    if (((q instanceof QryopSlWAnd) || (q instanceof QryopSlWSum)) &&
+        (q.weights.size() == q.args.size())) {
+      HashMap<String, Integer> first = new HashMap<String, Integer>();
+
+      for (int i = 0; i < q.args.size(); ) {
+        String key = q.args.get(i).toString();
+        Integer j = first.get(key);
+
+        if (j == null) {
+          first.put(key, i);
+          i++;
+        } else {
+          q.weights.set(j, q.weights.get(j) + q.weights.remove(i));
+          stats.foldedArgs++;
+          stats.postingsSaved += postings(q.args.remove(i), stats);
+        }
+      }
+    }
+
+    return q;
+  }
+
+  private static ArrayList<String> keys(Qryop q) {
+    ArrayList<String> keys = new ArrayList<String>();
+
+    for (int i = 0; i < q.args.size(); i++)
+      keys.add(q.args.get(i).toString());
+
+    return keys;
+  }
+
+  /**
+   *  Sort an operator's arguments by estimated document frequency,
+   *  and by their string forms when the estimates are equal.
+   */
+  private void reorder(Qryop q, final Stats stats) throws IOException {
+    final HashMap<Qryop, Long> df = new HashMap<Qryop, Long>();
+    ArrayList<Qryop> sorted = new ArrayList<Qryop>(q.args);
+
+    for (int i = 0; i < sorted.size(); i++)
+      df.put(sorted.get(i), df(sorted.get(i), stats));
+
+    Collections.sort(sorted, new Comparator<Qryop>() {
+      public int compare(Qryop a, Qryop b) {
+        int c = df.get(a).compareTo(df.get(b));
+        return (c != 0) ? c : a.toString().compareTo(b.toString());
+      }
+    });
+
+    if (!sorted.equals(q.args)) {
+      q.args.clear();
+      q.args.addAll(sorted);
+      stats.reorderedOps++;
+    }
+  }
+
+  /**
+   *  Estimate the number of documents that a subtree matches:  a
+   *  term's df, the smallest df of a conjunction, and the sum of the
+   *  dfs of other operators, at most the number of documents.
+   */
+  private long df(Qryop q, Stats stats) throws IOException {
+    if (q instanceof QryopIlTerm)
+      return termDf((QryopIlTerm) q, stats);
+
+    if (q.args.size() == 0)
+      return 0;
+
+    boolean conjunction = (q instanceof QryopSlAnd) ||
+      (q instanceof QryopIlNear) || (q instanceof QryopIlWindow);
+    long df = conjunction ? Long.MAX_VALUE : 0;
+
+    for (int i = 0; i < q.args.size(); i++) {
+      long argDf = df(q.args.get(i), stats);
+      df = conjunction ? Math.min(df, argDf) : df + argDf;
+    }
+
+    return Math.min(df, QryEval.READER.numDocs());
+  }
+
+  private int termDf(QryopIlTerm t, Stats stats) throws IOException {
+    String key = t.toString();
+    Integer df = stats.df.get(key);
+
+    if (df == null) {
+      df = QryEval.READER.docFreq(new Term(t.getField(), new BytesRef(t.getTerm())));
+      stats.df.put(key, df);
+    }
+
+    return df;
+  }
+
+  /**
+   *  @return The number of postings that evaluating a subtree reads.
+   */
+  private long postings(Qryop q, Stats stats) throws IOException {
+    if (q instanceof QryopIlTerm)
+      return termDf((QryopIlTerm) q, stats);
+
+    long postings = 0;
+
+    for (int i = 0; i < q.args.size(); i++)
+      postings += postings(q.args.get(i), stats);
+
+    return postings;
+  }
+
+  /**
+   *  A subtree's key.  Inverted lists that are read by position are
+   *  fetched with positions, so they are distinct from the same lists
+   *  read elsewhere.
+   */
+  private static String key(Qryop q, boolean positional) {
+    return (positional ? "pos:" : "") + q.toString();
+  }
+
+  /**
+   *  Whether a subtree can be shared.  A term is shared only under
+   *  another inverted list operator; a term that is scored directly
+   *  keeps its own cursor (and block bounds), and its #SCORE operator
+   *  is shared instead.
+   */
+  private boolean isShareable(Qryop q, boolean underIl) {
+    if ((q instanceof QryopSlShared) || (q instanceof QryopIlShared))
+      return false;
+    if (q instanceof QryopIlTerm)
+      return this.share && underIl;
+    return this.dedupe && ((q instanceof QryopSl) || (q instanceof QryopIl));
+  }
+
+  /**
+   *  Count the occurrences of each shareable subtree.  The arguments
+   *  of a repeated subtree are counted once.
+   */
+  private void count(Qryop q, boolean positional, boolean underIl,
+                     HashMap<String, Integer> counts) {
+
+    if (isShareable(q, underIl)) {
+      String key = key(q, positional);
+      Integer n = counts.get(key);
+
+      counts.put(key, (n == null) ? 1 : n + 1);
+      if (n != null)
+        return;
+    }
+
+    if ((q instanceof QryopSlShared) || (q instanceof QryopIlShared))
+      return;
+
+    positional |= (q instanceof QryopIlNear) || (q instanceof QryopIlWindow);
+
+    for (int i = 0; i < q.args.size(); i++)
+      count(q.args.get(i), positional, q instanceof QryopIl, counts);
+  }
+
+  /**
+   *  Replace each repeated subtree with one shared operator, in the
+   *  same order as count().
+   */
+  private Qryop replace(Qryop q, boolean positional, boolean underIl,
+                        HashMap<String, Integer> counts, HashMap<String, Qryop> shared,
+                        Stats stats) throws IOException {
+
+    String key = null;
+
+    if (isShareable(q, underIl) && (counts.get(key = key(q, positional)) >= 2)) {
+      Qryop s = shared.get(key);
+
+      if (s != null) {
+        if (q instanceof QryopIlTerm)
+          stats.sharedFetches++;
+        else
+          stats.sharedSubtrees++;
+        stats.postingsSaved += postings(q, stats);
+        return s;
+      }
+    } else
+      key = null;
+
+    if ((q instanceof QryopSlShared) || (q instanceof QryopIlShared))
+      return q;
+
+    boolean argPositional =
+      positional || (q instanceof QryopIlNear) || (q instanceof QryopIlWindow);
+
+    for (int i = 0; i < q.args.size(); i++)
+      q.args.set(i, replace(q.args.get(i), argPositional, q instanceof QryopIl,
+                            counts, shared, stats));
+
+    if (key != null) {
+      Qryop s = (q instanceof QryopSl) ?
+        new QryopSlShared((QryopSl) q) : new QryopIlShared((QryopIl) q);
+      shared.put(key, s);
+      return s;
+    }
+
+    return q;
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ *  A compiled query plan.  Compiling a query tree for a retrieval
+ *  model turns each query operator into a plan node that is
+ *  specialized for that model:  the model's parameters and the
+ *  operator's weights are looked up once, into final fields, and the
+ *  node creates scorers that don't consult the model again.  Each
+ *  scorer class serves one model, so the calls in the scoring loop
+ *  are monomorphic and the JIT can inline them.
+ *
+ *  A plan is immutable and holds no evaluation state.  Each call to
+ *  scorer() opens the inverted lists and creates a new tree of
+ *  scorers, so one plan can be evaluated any number of times.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+public abstract class QryPlan {
+
+  /**
+   *  Compile a query for a retrieval model.  As in allocDaaTPtrs, a
+   *  query that doesn't return a score list is wrapped in a #SCORE
+   *  operator.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return The plan.
+   *  @throws IOException
+   */
+  public static QryPlan compile(Qryop q, RetrievalModel r) throws IOException {
+    if (!(q instanceof QryopSl))
+      q = new QryopSlScore(q);
+
+    return ((QryopSl) q).compile(r);
+  }
+
+  /**
+   *  Create the scorers of a list of plans.
+   *  @param plans The plans.
+   *  @return A new scorer for each plan, in the same order.
+   *  @throws IOException
+   */
+  public static Scorer[] scorers(QryPlan[] plans) throws IOException {
+    Scorer[] scorers = new Scorer[plans.length];
+
+    for (int i = 0; i < plans.length; i++)
+      scorers[i] = plans[i].scorer();
+
+    return scorers;
+  }
+
+  /**
+   *  @return A new scorer that evaluates the plan one document at a
+   *  time, positioned before the first document.
+   *  @throws IOException
+   */
+  public abstract Scorer scorer() throws IOException;
+
+  /**
+   *  Evaluate the plan and keep only the best documents.  The ranking
+   *  is the same as evaluating the query with evaluate() followed by
+   *  QryEval.getTopNDocuments, but no score lists are built.
+   *  @param k The number of documents to keep.
+   *  @return The top k documents, best first.
+   *  @throws IOException
+   */
+  public QryResult evaluateTopK(int k) throws IOException {
+    TopKCollector collector = new TopKCollector(k);
+
+    QryEval.addDocsScored(collect(scorer(), collector, 0, Scorer.NO_MORE_DOCS));
+
+    return collector.getResult();
+  }
+
+  /**
+   *  Offer the documents of a scorer whose docids are in a range to a
+   *  collector.
+   *  @param scorer A scorer that is not positioned yet.
+   *  @param collector The collector.
+   *  @param minDoc The first docid of the range.
+   *  @param maxDoc The docid after the range.
+   *  @return The number of documents scored.
+   *  @throws IOException
+   */
+  public static long collect(Scorer scorer, TopKCollector collector, int minDoc, int maxDoc)
+    throws IOException {
+
+    // The root scorer learns the collector's threshold, so that it
+    // can skip documents that can't enter the top k.
+
+    long numScored = 0;
+    int docid = (minDoc > 0) ? scorer.advance(minDoc) : scorer.nextDoc();
+
+    for (; docid < maxDoc; docid = scorer.nextDoc()) {
+      numScored++;
+      if (collector.collect(docid, scorer.score()))
+        scorer.setMinCompetitiveScore(collector.threshold());
+    }
+
+    return numScored;
+  }
+}
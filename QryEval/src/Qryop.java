@@ -19,9 +19,38 @@ public abstract class Qryop {
 
   protected class DaaTPtr implements Comparable<DaaTPtr>{
     protected ScoreList scoreList;	// A qry arg's score list (if any)
-    protected InvList invList;		// A qry arg's inverted list (if any)
-    protected int nextDoc;		// The next document to examine
+    protected PostingCursor cursor;	// A qry arg's inverted list cursor (if any)
+    protected int nextDoc;		// The next document to examine (score lists)
     protected int size;     // A qry arg's list size (score list or inverted list)
+
+    /**
+     *  @return The docid that the pointer is on, -1 if a cursor is not
+     *  positioned yet, or PostingCursor.NO_MORE_DOCS if the list is
+     *  exhausted.
+     */
+    protected int docid() {
+      if (this.cursor != null)
+        return this.cursor.docID();
+      return (this.nextDoc < this.size) ?
+        this.scoreList.getDocid(this.nextDoc) : PostingCursor.NO_MORE_DOCS;
+    }
+
+    /**
+     *  Move the pointer forward to the first document whose docid is
+     *  at least target.  Score lists use a galloping search, cursors
+     *  use their own advance, so skipping over a long list costs much
+     *  less than stepping through it one posting at a time.
+     *  @param target The docid to look for.
+     *  @return The new docid, or PostingCursor.NO_MORE_DOCS.
+     *  @throws IOException
+     */
+    protected int advance(int target) throws IOException {
+      if (this.cursor != null)
+        return this.cursor.advance(target);
+      this.nextDoc = this.scoreList.findDocid(this.nextDoc, target);
+      return docid();
+    }
+
     @Override
     public int compareTo(DaaTPtr o) {
       // TODO implement Comparable interface
@@ -75,6 +104,20 @@ public abstract class Qryop {
     this.daatPtrs = new ArrayList<DaaTPtr>();
   }
 
+  /**
+   *  Tell the operator whether its parent needs term positions.  Most
+   *  operators just pass the request on to their arguments; operators
+   *  that match positions (e.g., #NEAR) always need them from their
+   *  arguments.  If no operator needs positions, inverted lists are
+   *  fetched with docids and tfs only, which is much cheaper.
+   *  @param needed true if positions must be available.
+   *  @return void
+   */
+  public void setPositionsNeeded (boolean needed) {
+    for (int i = 0; i < this.args.size(); i++)
+      this.args.get(i).setPositionsNeeded(needed);
+  }
+
   /**
    *  Removes an argument from the list of query operator arguments.
    *  This simplifies the design of some query parsing architectures.
@@ -23,14 +23,47 @@ public abstract class QryopIl extends Qryop {
   public void allocDaaTPtrs (RetrievalModel r) throws IOException {
 
     for (int i=0; i<this.args.size(); i++) {
+      Qryop argi = this.args.get(i);
       DaaTPtr ptri = new DaaTPtr ();
-      ptri.invList = this.args.get(i).evaluate(r).invertedList;
+
+      if (argi instanceof QryopIl)
+        ptri.cursor = ((QryopIl) argi).cursor(r);
+      else
+        ptri.cursor = argi.evaluate(r).invertedList.cursor();
+
       ptri.scoreList = null;
       ptri.nextDoc = 0;
-      ptri.size = ptri.invList.df;
+      ptri.size = ptri.cursor.df();
 	
       this.daatPtrs.add (ptri);
     }
   }
 
+  /**
+   *  Use the specified retrieval model to evaluate the query operator,
+   *  and return a cursor over the resulting inverted list.  By default
+   *  the inverted list is evaluated into memory first; operators that
+   *  can produce their postings incrementally override this method.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return A cursor positioned before the first document.
+   *  @throws IOException
+   */
+  public PostingCursor cursor (RetrievalModel r) throws IOException {
+    return evaluate(r).invertedList.cursor();
+  }
+
+  /**
+   *  Find this operator's inverted list in the phrase index
+   *  (phrases:file), which stores precomputed lists of frequent
+   *  proximity operators.
+   *  @return A cursor positioned before the first document, or null if
+   *  the list was not precomputed.
+   *  @throws IOException
+   */
+  protected PostingCursor precomputedCursor () throws IOException {
+    if (QryEval.phraseIndex == null)
+      return null;
+    return QryEval.phraseIndex.cursor(toString());
+  }
+
 }
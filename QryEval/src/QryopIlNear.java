@@ -32,6 +32,31 @@ public class QryopIlNear extends QryopIl {
     this.args.add(a);
   }
 
+  /**
+   * This operator matches positions, so its arguments always need them.
+   * 
+   * @param needed
+   *          Ignored.
+   * @return void
+   */
+  public void setPositionsNeeded(boolean needed) {
+    super.setPositionsNeeded(true);
+  }
+
+  /**
+   * A precomputed list is read directly, instead of being copied into memory first.
+   * 
+   * @param r
+   *          A retrieval model that controls how the operator behaves.
+   * @return A cursor positioned before the first document.
+   * @throws IOException
+   */
+  public PostingCursor cursor(RetrievalModel r) throws IOException {
+    PostingCursor precomputed = precomputedCursor();
+
+    return (precomputed != null) ? precomputed : super.cursor(r);
+  }
+
   /**
    * Evaluates the query operator, including any child operators and returns the result.
    * 
@@ -42,6 +67,16 @@ public class QryopIlNear extends QryopIl {
    */
   public QryResult evaluate(RetrievalModel r) throws IOException {
 
+    // Read a precomputed list instead of joining positions, if there is one.
+
+    PostingCursor precomputed = precomputedCursor();
+
+    if (precomputed != null) {
+      QryResult result = new QryResult();
+      result.invertedList = new InvList(precomputed);
+      return result;
+    }
+
     // Initialization
 
     allocDaaTPtrs(r);
@@ -52,79 +87,99 @@ public class QryopIlNear extends QryopIl {
     //Collections.sort(this.daatPtrs);
     
     // not sure about this line. Should all terms come from same field?
-    result.invertedList.field = new String(this.daatPtrs.get(0).invList.field);
+    result.invertedList.field = new String(this.daatPtrs.get(0).cursor.field());
     
     // very similar to QryopSlAnd
     DaaTPtr ptr0 = this.daatPtrs.get(0);
 
-    EVALUATEDOCUMENTS: for (; ptr0.nextDoc < ptr0.invList.df; ptr0.nextDoc++) {
+    // matches holds the positions that matched the terms so far, and
+    // nextMatches the positions that also match the next term.  The
+    // buffers are swapped after each term, and reused for every
+    // document, so the join doesn't allocate.
+
+    int[] matches = new int[16];
+    int[] nextMatches = new int[16];
+
+    EVALUATEDOCUMENTS: for (int ptr0Docid = ptr0.cursor.nextDoc();
+                            ptr0Docid != PostingCursor.NO_MORE_DOCS;
+                            ptr0Docid = ptr0.cursor.nextDoc()) {
 
-      int ptr0Docid = ptr0.invList.getDocid(ptr0.nextDoc);
-      
-      // pointer to the current doc's invlist's posting
-      InvList.DocPosting pst0 = ptr0.invList.postings.get(ptr0.nextDoc);
-      //System.out.println("i's docID: " + ptr0Docid);
-      //System.out.println("i's positions: " +pst0.positions);
-      
       // Do the other query arguments have the ptr0Docid?    
-      // use arraylist to store all match positions in previous comparison
       // e.g. if term "cheap" and term "internet" has in doc ptr0Docid has 
       // matching positions(i.e. "cheap" pos{1,4,6,9}, "internet" pos{2,7,11}. distance:1,
-      // then we store {2,7} in this arraylist, for next term)
-      ArrayList<Integer> prevMatchPostions = new ArrayList<Integer>(pst0.positions);
-      int prevPos, nextPos;
-      EVALUATETERM: for (int j = 1; j < this.daatPtrs.size(); j++) {
+      // then matches is {2,7} for the next term)
+      // ptr0's positions are not read until another term matches ptr0Docid.
+      int numMatches = -1;
+
+      for (int j = 1; j < this.daatPtrs.size(); j++) {
 
         DaaTPtr ptrj = this.daatPtrs.get(j);
         
-        InvList.DocPosting pstj;
-        while (true) {
-          if (ptrj.nextDoc >= ptrj.invList.df)
-            break EVALUATEDOCUMENTS; // No more docs can match, this term doesn't have common doc id
-          else if (ptrj.invList.getDocid(ptrj.nextDoc) > ptr0Docid)
-            continue EVALUATEDOCUMENTS; // The ptr0docid can't match, evaluate next ptr0docid
-          else if (ptrj.invList.getDocid(ptrj.nextDoc) < ptr0Docid)
-            ptrj.nextDoc++; // Not yet at the right doc.
-          else {// now at the same doc, test the distance
-            pstj = ptrj.invList.postings.get(ptrj.nextDoc);
-            //System.out.println("j's docID: "+ptrj.invList.getDocid(ptrj.nextDoc));
-            //System.out.println("j's postions:" + pstj.positions);
-            int m = 0, n = 0; 
-            // m : index in prevMatchPositions   
-            // n : index in pstj.postions 
-            ArrayList<Integer> tempPos = new ArrayList<Integer>();
-            while (m < prevMatchPostions.size() && n < pstj.positions.size()) {
-              
-              prevPos = prevMatchPostions.get(m);
-              nextPos = pstj.positions.get(n);
-              if ( nextPos < prevPos)
-                n++;// it is impossible that nextPos and prevPos are equal since they are in the same doc
-              else if ((nextPos - prevPos) <= this.distance) {
-                // match, store new match position in prevMatchPositions
-                tempPos.add(nextPos);
-                n++;
-                m++;
-              }
-              else if ((nextPos - prevPos) > this.distance) 
-                m++;// m is too small, increase m and flag this position as impossible
-            }
-            if (tempPos.size() == 0) // there is no need to check rest terms with docid ptr0docid
-              continue EVALUATEDOCUMENTS;
-            prevMatchPostions = tempPos;
-            continue EVALUATETERM; // ready for next term evaluation
-          }
-        }        
-      }    
+        int ptrjDocid = ptrj.advance(ptr0Docid); // Skip to the right doc.
+        if (ptrjDocid == PostingCursor.NO_MORE_DOCS)
+          break EVALUATEDOCUMENTS; // No more docs can match, this term doesn't have common doc id
+        else if (ptrjDocid > ptr0Docid)
+          continue EVALUATEDOCUMENTS; // The ptr0docid can't match, evaluate next ptr0docid
+
+        // now at the same doc, test the distance
+        if (numMatches < 0) {
+          numMatches = ptr0.cursor.freq();
+          if (numMatches > matches.length)
+            matches = new int[Math.max(numMatches, matches.length * 2)];
+          for (int k = 0; k < numMatches; k++)
+            matches[k] = ptr0.cursor.nextPosition();
+        }
+
+        // Term j's positions are read one at a time, as the merge
+        // needs them.
+        int tf = ptrj.cursor.freq();
+        if (Math.min(numMatches, tf) > nextMatches.length)
+          nextMatches = new int[Math.max(Math.min(numMatches, tf), nextMatches.length * 2)];
+
+        int m = 0, n = 0, numNextMatches = 0;
+        // m : index in matches
+        // n : index in term j's positions
+        int nextPos = ptrj.cursor.nextPosition();
+
+        while (m < numMatches && n < tf) {
+          int prevPos = matches[m];
+          if (nextPos < prevPos) {
+            // it is impossible that nextPos and prevPos are equal since they are in the same doc
+            if (++n < tf)
+              nextPos = ptrj.cursor.nextPosition();
+          } else if ((nextPos - prevPos) <= this.distance) {
+            // match, store new match position
+            nextMatches[numNextMatches++] = nextPos;
+            m++;
+            if (++n < tf)
+              nextPos = ptrj.cursor.nextPosition();
+          } else
+            m++;// m is too small, increase m and flag this position as impossible
+        }
+        if (numNextMatches == 0) // there is no need to check rest terms with docid ptr0docid
+          continue EVALUATEDOCUMENTS;
+
+        int[] swap = matches;
+        matches = nextMatches;
+        nextMatches = swap;
+        numMatches = numNextMatches;
+      }
+      if (numMatches < 0) { // #NEAR with a single argument
+        numMatches = ptr0.cursor.freq();
+        if (numMatches > matches.length)
+          matches = new int[Math.max(numMatches, matches.length * 2)];
+        for (int k = 0; k < numMatches; k++)
+          matches[k] = ptr0.cursor.nextPosition();
+      }
       // **********************Attention********************************
       // update result, use last term's position as search result's position 
-      result.invertedList.appendPosting(ptr0Docid, prevMatchPostions);
+      result.invertedList.appendPosting(ptr0Docid, matches, numMatches);
     }
 
     freeDaaTPtrs();
     return result;
   }
 
-
   /**
    * syntaxCheckArgResults does syntax checking that can only be done after query arguments are
    * evaluated.
@@ -139,7 +194,7 @@ public class QryopIlNear extends QryopIl {
 
       if (!(this.args.get(i) instanceof QryopIl))
         QryEval.fatalError("Error:  Invalid argument in " + this.toString());
-      else if ((i > 0) && (!ptrs.get(i).invList.field.equals(ptrs.get(0).invList.field)))
+      else if ((i > 0) && (!ptrs.get(i).cursor.field().equals(ptrs.get(0).cursor.field())))
         QryEval.fatalError("Error:  Arguments must be in the same field:  " + this.toString());
     }
 
@@ -0,0 +1,103 @@
+/**
+ *  This class implements a shared inverted list operator.  The query
+ *  optimizer (QryOptimizer) puts one instance in every place where a
+ *  query repeats an inverted list operator, e.g., the terms of
+ *  #NEAR/1(family tree) and #WINDOW/8(family tree).  The argument is
+ *  evaluated the first time the list is needed, and the other places
+ *  read the same inverted list, so it is fetched only once per query.
+ *  A shared operator can also use a ResultCache, to share the inverted
+ *  list with later queries.  The argument is evaluated once even if
+ *  several threads ask for it (parallel:threads).
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+public class QryopIlShared extends QryopIl {
+
+  private RetrievalModel model = null;	// the model of the cached result
+  private QryResult result = null;
+  private boolean positionsNeeded = false;
+  private ResultCache cache = null;
+
+  /**
+   *  @param q The shared query operator.
+   */
+  public QryopIlShared(QryopIl q) {
+    this.args.add(q);
+  }
+
+  /**
+   *  @param q The shared query operator.
+   *  @param cache The cache that shares its inverted list across queries.
+   */
+  public QryopIlShared(QryopIl q, ResultCache cache) {
+    this.args.add(q);
+    this.cache = cache;
+  }
+
+  /**
+   *  Share the inverted list across queries.
+   *  @param cache The cache.
+   *  @return void
+   */
+  public void setCache(ResultCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   *  A shared operator has exactly one argument, so this does nothing.
+   *  @param {q} q The query argument (query operator) to append.
+   *  @return void
+   */
+  public void add(Qryop q) {
+  }
+
+  /**
+   *  Evaluate the shared operator, or return the inverted list that
+   *  was evaluated earlier.  Callers must not modify it.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  public synchronized QryResult evaluate(RetrievalModel r) throws IOException {
+    if ((this.result == null) || (this.model != r)) {
+      Qryop arg = this.args.get(0);
+
+      if (this.cache != null) {
+        String key = ResultCache.key(r, arg);
+        ResultCache.Entry e = this.cache.get(key, this.positionsNeeded);
+
+        if (e != null)
+          this.result = e.result;
+        else {
+          this.result = arg.evaluate(r);
+          this.cache.put(key, arg, this.result);
+        }
+      } else
+        this.result = arg.evaluate(r);
+      this.model = r;
+    }
+    return this.result;
+  }
+
+  /**
+   *  The list is shared, so it needs positions if any place that
+   *  reads it does.
+   *  @param needed true if positions must be available.
+   *  @return void
+   */
+  public void setPositionsNeeded(boolean needed) {
+    this.positionsNeeded |= needed;
+    super.setPositionsNeeded(this.positionsNeeded);
+  }
+
+  /*
+   *  Return a string version of this query operator.  
+   *  @return The string version of this query operator.
+   */
+  public String toString() {
+    return this.args.get(0).toString();
+  }
+}
@@ -50,45 +50,111 @@ public class QryopIlSyn extends QryopIl {
     syntaxCheckArgResults(this.daatPtrs);
 
     QryResult result = new QryResult();
-    result.invertedList.field = new String(this.daatPtrs.get(0).invList.field);
+    result.invertedList.field = new String(this.daatPtrs.get(0).cursor.field());
 
     // Each pass of the loop adds 1 document to result until all of
-    // the inverted lists are depleted. When a list is depleted, it
-    // is removed from daatPtrs, so this loop runs until daatPtrs is empty.
+    // the inverted lists are depleted.  The arguments are kept in a
+    // heap ordered by their current docids, so finding the next
+    // document costs O(log args), and an argument leaves the heap when
+    // its list is depleted.
+
+    // If an argument was read without positions, the union only
+    // needs term frequencies.
+
+    int numArgs = this.daatPtrs.size();
+    PostingCursor[] cursors = new PostingCursor[numArgs];
+    int[] docHeap = new int[numArgs];	// argument indexes, smallest docid first
+    int docHeapSize = 0;
+    boolean hasPositions = true;
+
+    for (int i = 0; i < numArgs; i++) {
+      cursors[i] = this.daatPtrs.get(i).cursor;
+      hasPositions &= cursors[i].hasPositions();
+      if (cursors[i].nextDoc() != PostingCursor.NO_MORE_DOCS)
+        docHeap[docHeapSize++] = i;
+    }
+
+    for (int h = docHeapSize / 2 - 1; h >= 0; h--)
+      siftDown(docHeap, docHeapSize, h, cursors, null);
 
-    // This implementation is intended to be clear. A more efficient
-    // implementation would combine loops and use merge-sort.
+    // The arguments that match the current document, a heap of them
+    // ordered by their current positions, each one's current position
+    // and the number of positions it has left.  Positions are read one
+    // at a time and merged into a buffer that is reused for every
+    // document, so the positions are never sorted.
 
-    while (this.daatPtrs.size() > 0) {
+    int[] matches = new int[numArgs];
+    int[] posHeap = new int[numArgs];
+    int[] termPos = new int[numArgs];
+    int[] remaining = new int[numArgs];
+    int[] positions = new int[16];
 
-      int nextDocid = getSmallestCurrentDocid();
+    while (docHeapSize > 0) {
 
       // Create a new posting that is the union of the posting lists
       // that match the nextDocid.
 
-      List<Integer> positions = new ArrayList<Integer>();
+      int nextDocid = cursors[docHeap[0]].docID();
+      int numMatches = 0;
+      int numPositions = 0;
+
+      while ((docHeapSize > 0) && (cursors[docHeap[0]].docID() == nextDocid)) {
+        int i = docHeap[0];
+
+        matches[numMatches++] = i;
+        numPositions += cursors[i].freq();
+        docHeap[0] = docHeap[--docHeapSize];
+        if (docHeapSize > 0)
+          siftDown(docHeap, docHeapSize, 0, cursors, null);
+      }
+
+      if (! hasPositions)
+        result.invertedList.appendPosting(nextDocid, numPositions);
+      else {
+        if (numPositions > positions.length)
+          positions = new int[Math.max(numPositions, positions.length * 2)];
+
+        int posHeapSize = 0;
+
+        for (int k = 0; k < numMatches; k++) {
+          int i = matches[k];
+          remaining[i] = cursors[i].freq() - 1;
+          termPos[i] = cursors[i].nextPosition();
+          posHeap[posHeapSize++] = i;
+        }
+
+        for (int h = posHeapSize / 2 - 1; h >= 0; h--)
+          siftDown(posHeap, posHeapSize, h, null, termPos);
 
-      for (int i = 0; i < this.daatPtrs.size(); i++) {
-        DaaTPtr ptri = this.daatPtrs.get(i);
+        for (int n = 0; n < numPositions; n++) {
+          int i = posHeap[0];
 
-        if (ptri.nextDoc < ptri.size && ptri.invList.getDocid(ptri.nextDoc) == nextDocid) {
-          positions.addAll(ptri.invList.postings.get(ptri.nextDoc).positions);
-          ptri.nextDoc++;
+          positions[n] = termPos[i];
+          if (remaining[i] > 0) {
+            remaining[i]--;
+            termPos[i] = cursors[i].nextPosition();
+          } else
+            posHeap[0] = posHeap[--posHeapSize];
+          if (posHeapSize > 0)
+            siftDown(posHeap, posHeapSize, 0, null, termPos);
         }
+
+        result.invertedList.appendPosting(nextDocid, positions, numPositions);
       }
 
-      Collections.sort(positions);
-      result.invertedList.appendPosting(nextDocid, positions);
+      // Move the matching arguments to their next documents.
 
-      // If a DaatPtr has reached the end of its list, remove it.
-      // The loop is backwards so that removing an arg does not
-      // interfere with iteration.
+      for (int k = 0; k < numMatches; k++) {
+        int i = matches[k];
 
-      for (int i = this.daatPtrs.size() - 1; i >= 0; i--) {
-        DaaTPtr ptri = this.daatPtrs.get(i);
+        if (cursors[i].nextDoc() != PostingCursor.NO_MORE_DOCS) {
+          int h = docHeapSize++;
 
-        if (ptri.nextDoc >= ptri.invList.postings.size()) {
-          this.daatPtrs.remove(i);
+          while ((h > 0) && (cursors[docHeap[(h - 1) / 2]].docID() > cursors[i].docID())) {
+            docHeap[h] = docHeap[(h - 1) / 2];
+            h = (h - 1) / 2;
+          }
+          docHeap[h] = i;
         }
       }
     }
@@ -99,21 +165,33 @@ public class QryopIlSyn extends QryopIl {
   }
 
   /**
-   * Return the smallest unexamined docid from the DaaTPtrs.
-   * 
-   * @return The smallest internal document id.
+   * Restore the order of a heap of argument indexes below position h. The heap is ordered by the
+   * arguments' current docids, or if cursors is null, by their current positions.
    */
-  public int getSmallestCurrentDocid() {
+  private static void siftDown(int[] heap, int heapSize, int h, PostingCursor[] cursors,
+          int[] termPos) {
+    int i = heap[h];
+    int key = (cursors != null) ? cursors[i].docID() : termPos[i];
 
-    int nextDocid = Integer.MAX_VALUE;
+    while (2 * h + 1 < heapSize) {
+      int child = 2 * h + 1;
 
-    for (int i = 0; i < this.daatPtrs.size(); i++) {
-      DaaTPtr ptri = this.daatPtrs.get(i);
-      if (ptri.nextDoc < ptri.size && nextDocid > ptri.invList.getDocid(ptri.nextDoc))
-        nextDocid = ptri.invList.getDocid(ptri.nextDoc);
+      if ((child + 1 < heapSize) && (heapKey(heap[child + 1], cursors, termPos) <
+                                     heapKey(heap[child], cursors, termPos)))
+        child++;
+
+      if (heapKey(heap[child], cursors, termPos) >= key)
+        break;
+
+      heap[h] = heap[child];
+      h = child;
     }
 
-    return (nextDocid);
+    heap[h] = i;
+  }
+
+  private static int heapKey(int i, PostingCursor[] cursors, int[] termPos) {
+    return (cursors != null) ? cursors[i].docID() : termPos[i];
   }
 
   /**
@@ -130,7 +208,7 @@ public class QryopIlSyn extends QryopIl {
 
       if (!(this.args.get(i) instanceof QryopIl))
         QryEval.fatalError("Error:  Invalid argument in " + this.toString());
-      else if ((i > 0) && (!ptrs.get(i).invList.field.equals(ptrs.get(0).invList.field)))
+      else if ((i > 0) && (!ptrs.get(i).cursor.field().equals(ptrs.get(0).cursor.field())))
         QryEval.fatalError("Error:  Arguments must be in the same field:  " + this.toString());
     }
 
@@ -10,10 +10,13 @@
 
 import java.io.*;
 
+import org.apache.lucene.index.AtomicReaderContext;
+
 public class QryopIlTerm extends QryopIl {
 
   private String term;
   private String field;
+  private boolean positionsNeeded = true;
 
   /**
    *  Constructor.  The term is assumed to match the body field.
@@ -54,10 +57,72 @@ public class QryopIlTerm extends QryopIl {
    */
   public QryResult evaluate(RetrievalModel r) throws IOException {
     QryResult result = new QryResult();
-    result.invertedList = new InvList(this.term, this.field);
+
+    if (QryEval.postingCache != null)
+      result.invertedList =
+        QryEval.postingCache.get(this.term, this.field, this.positionsNeeded);
+    else
+      result.invertedList = new InvList(this.term, this.field, this.positionsNeeded);
+
     return result;
   }
 
+  /**
+   *  Returns a cursor that reads the term's inverted list directly
+   *  from the index, without copying it into memory.  The cursor's df
+   *  and ctf are index statistics, which count deleted documents, so
+   *  an index with deletions gets an in-memory list instead.  When the
+   *  posting cache is enabled, the cached list is used.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return A cursor positioned before the first document.
+   *  @throws IOException
+   */
+  public PostingCursor cursor(RetrievalModel r) throws IOException {
+    if (QryEval.READER.hasDeletions() || (QryEval.postingCache != null))
+      return evaluate(r).invertedList.cursor();
+    return new IndexPostingCursor(this.term, this.field, this.positionsNeeded);
+  }
+
+  /**
+   *  Returns a cursor over the term's postings in one leaf (segment)
+   *  of the index, for segment parallel evaluation.  Docids and
+   *  statistics are those of the whole index.  If the whole index
+   *  would be read from memory (see cursor), the cursor reads the
+   *  whole list, and the caller must skip the other leaves' documents.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @param leaf The leaf.
+   *  @return A cursor positioned before the first document.
+   *  @throws IOException
+   */
+  public PostingCursor cursor(RetrievalModel r, AtomicReaderContext leaf) throws IOException {
+    if (QryEval.READER.hasDeletions() || (QryEval.postingCache != null))
+      return cursor(r);
+    return new IndexPostingCursor(this.term, this.field, this.positionsNeeded, leaf);
+  }
+
+  /**
+   *  @return The term string.
+   */
+  public String getTerm() {
+    return this.term;
+  }
+
+  /**
+   *  @return The field that the term matches.
+   */
+  public String getField() {
+    return this.field;
+  }
+
+  /**
+   *  Records whether the term's positions must be read.
+   *  @param needed true if positions must be available.
+   *  @return void
+   */
+  public void setPositionsNeeded(boolean needed) {
+    this.positionsNeeded = needed;
+  }
+
   /*
    *  Return a string version of this query operator.  
    *  @return The string version of this query operator.
@@ -32,6 +32,31 @@ public class QryopIlWindow extends QryopIl {
     this.args.add(a);
   }
 
+  /**
+   * This operator matches positions, so its arguments always need them.
+   * 
+   * @param needed
+   *          Ignored.
+   * @return void
+   */
+  public void setPositionsNeeded(boolean needed) {
+    super.setPositionsNeeded(true);
+  }
+
+  /**
+   * A precomputed list is read directly, instead of being copied into memory first.
+   * 
+   * @param r
+   *          A retrieval model that controls how the operator behaves.
+   * @return A cursor positioned before the first document.
+   * @throws IOException
+   */
+  public PostingCursor cursor(RetrievalModel r) throws IOException {
+    PostingCursor precomputed = precomputedCursor();
+
+    return (precomputed != null) ? precomputed : super.cursor(r);
+  }
+
   /**
    * Evaluates the query operator, including any child operators and returns the result.
    * 
@@ -42,6 +67,16 @@ public class QryopIlWindow extends QryopIl {
    */
   public QryResult evaluate(RetrievalModel r) throws IOException {
 
+    // Read a precomputed list instead of joining positions, if there is one.
+
+    PostingCursor precomputed = precomputedCursor();
+
+    if (precomputed != null) {
+      QryResult result = new QryResult();
+      result.invertedList = new InvList(precomputed);
+      return result;
+    }
+
     // Initialization
 
     allocDaaTPtrs(r);
@@ -52,7 +87,7 @@ public class QryopIlWindow extends QryopIl {
     Collections.sort(this.daatPtrs);
     
     // set field of result
-    result.invertedList.field = new String(this.daatPtrs.get(0).invList.field);
+    result.invertedList.field = new String(this.daatPtrs.get(0).cursor.field());
     
     // very similar to QryopSlAnd
     DaaTPtr ptr0 = this.daatPtrs.get(0);
@@ -60,111 +95,93 @@ public class QryopIlWindow extends QryopIl {
     int numArgs = this.daatPtrs.size();
     
     if (numArgs == 1) {
-      result.invertedList = ptr0.invList;
+      result.invertedList = new InvList(ptr0.cursor);
       freeDaaTPtrs();
       return result;
     }
     
-    EVALUATEDOCUMENTS: for (; ptr0.nextDoc < ptr0.invList.df; ptr0.nextDoc++) {
+    // The arguments' cursors, and for each argument, its current
+    // position in the document, the number of positions read and its
+    // tf.  Positions are read one at a time, as the window moves, and
+    // the arrays are reused for every document.
+
+    PostingCursor[] cursors = new PostingCursor[numArgs];
+    int[] termPos = new int[numArgs];
+    int[] numRead = new int[numArgs];
+    int[] tfs = new int[numArgs];
+    int[] matches = new int[16];
+
+    for (int i = 0; i < numArgs; i++)
+      cursors[i] = this.daatPtrs.get(i).cursor;
 
-      int ptr0Docid = ptr0.invList.getDocid(ptr0.nextDoc);
-      
-      // pointer to the current doc's invlist's posting
-      //InvList.DocPosting pst0 = ptr0.invList.postings.get(ptr0.nextDoc);
-      
-      
+    EVALUATEDOCUMENTS: for (int ptr0Docid = ptr0.cursor.nextDoc();
+                            ptr0Docid != PostingCursor.NO_MORE_DOCS;
+                            ptr0Docid = ptr0.cursor.nextDoc()) {
 
       // Do the other query arguments have the ptr0Docid?    
-      EVALUATETERM: for (int j = 1; j < this.daatPtrs.size(); j++) {
+      for (int j = 1; j < numArgs; j++) {
 
         DaaTPtr ptrj = this.daatPtrs.get(j);
         
-        InvList.DocPosting pstj;
-        while (true) {
-          if (ptrj.nextDoc >= ptrj.invList.df)
-            break EVALUATEDOCUMENTS; // No more docs can match, this term doesn't have common doc id
-          else if (ptrj.invList.getDocid(ptrj.nextDoc) > ptr0Docid)
-            continue EVALUATEDOCUMENTS; // The ptr0docid can't match, evaluate next ptr0docid
-          else if (ptrj.invList.getDocid(ptrj.nextDoc) < ptr0Docid)
-            ptrj.nextDoc++; // Not yet at the right doc.
-          else if (j != numArgs - 1)
-            continue EVALUATETERM; // ready for next term evaluation
-          else {// now at the same doc and reach the last term, test the distance
-            int[] termPos = new int[numArgs]; // to save term positions
-            int[] posPtr = new int[numArgs]; // to store pointers to postings
-            int[] termLength = new int[numArgs];
-            boolean hasMorePos = true;
-            int[] checkValid = new int[3];
-            int minIdx;
-            ArrayList<Integer> tempPos = new ArrayList<Integer>();
-            DaaTPtr ptr;
-            
-            for (int i = 0; i < numArgs; i++) {
-              ptr = this.daatPtrs.get(i); // get i th term
-              pstj = ptr.invList.postings.get(ptr.nextDoc); // get postings
-              termPos[i] = pstj.positions.get(posPtr[i]); // 
-              termLength[i] = pstj.positions.size();
-              //posPtr[i]++;
-            }
-            while (hasMorePos) {
-              checkValid = validation(termPos);
-              if (checkValid[0] == 1) { //found pair
-                tempPos.add(termPos[checkValid[2]]); // add last position to temporary position list
-                for (int i = 0; i < numArgs; i++) {
-                  posPtr[i]++; // update i th pointer
-                  if (posPtr[i] >= termLength[i]) {// check i th pointer
-                    hasMorePos = false;
-                    break;
-                  }
-                  ptr = this.daatPtrs.get(i); // get i th term
-                  pstj = ptr.invList.postings.get(ptr.nextDoc); // get postings
-                  termPos[i] = pstj.positions.get(posPtr[i]); // update term's position
-                }
-              }
-              else { // it's not a valid pair, update the term position of minimum position
-                minIdx = checkValid[1];
-                posPtr[minIdx]++;
-                if (posPtr[minIdx] >= termLength[minIdx]) // check pointer
-                  break;
-                ptr = this.daatPtrs.get(minIdx); // get i th term
-                pstj = ptr.invList.postings.get(ptr.nextDoc); // get postings
-                termPos[minIdx] = pstj.positions.get(posPtr[minIdx]); // update term's position
-              }
-            }
-            if (tempPos.size() != 0)
-              result.invertedList.appendPosting(ptr0Docid, tempPos);
-            continue EVALUATEDOCUMENTS;
+        int ptrjDocid = ptrj.advance(ptr0Docid); // Skip to the right doc.
+        if (ptrjDocid == PostingCursor.NO_MORE_DOCS)
+          break EVALUATEDOCUMENTS; // No more docs can match, this term doesn't have common doc id
+        else if (ptrjDocid > ptr0Docid)
+          continue EVALUATEDOCUMENTS; // The ptr0docid can't match, evaluate next ptr0docid
+      }
+
+      // now at the same doc for every term, test the distance
+      for (int i = 0; i < numArgs; i++) {
+        tfs[i] = cursors[i].freq();
+        termPos[i] = cursors[i].nextPosition();
+        numRead[i] = 1;
+      }
+
+      int numMatches = 0;
+
+      WINDOWS: while (true) {
+
+        // Find the (first) terms with the smallest and largest positions.
+        int minIdx = 0, maxIdx = 0;
+        int minPos = termPos[0], maxPos = termPos[0];
+
+        for (int i = 1; i < numArgs; i++) {
+          if (termPos[i] < minPos) {
+            minPos = termPos[i];
+            minIdx = i;
+          }
+          else if (termPos[i] > maxPos) {
+            maxPos = termPos[i];
+            maxIdx = i;
+          }
+        }
+
+        if ((maxPos - minPos) <= (this.distance - 1)) { //found a window
+          // add last position to the matches, and move every term past the window
+          if (numMatches == matches.length)
+            matches = Arrays.copyOf(matches, matches.length * 2);
+          matches[numMatches++] = termPos[maxIdx];
+          for (int i = 0; i < numArgs; i++) {
+            if (numRead[i] >= tfs[i])
+              break WINDOWS;
+            termPos[i] = cursors[i].nextPosition();
+            numRead[i]++;
           }
-        }        
-      }    
+        }
+        else { // it's not a valid window, move the term with the minimum position
+          if (numRead[minIdx] >= tfs[minIdx])
+            break;
+          termPos[minIdx] = cursors[minIdx].nextPosition();
+          numRead[minIdx]++;
+        }
+      }
+      if (numMatches != 0)
+        result.invertedList.appendPosting(ptr0Docid, matches, numMatches);
     }
 
     freeDaaTPtrs();
     return result;
   }
-  
-  private int[] validation(int[] termPos) {
-    int minPos = termPos[0];
-    int maxPos = termPos[0];
-    int result[] = new int[3];
-    // isValid result[0]
-    // minIdx - result[1]
-    // maxIdx - result[2]
-    for (int i = 1; i < termPos.length; i++) {
-      if (termPos[i] < minPos) {
-        minPos = termPos[i];
-        result[1] = i;
-      }
-      else if (termPos[i] > maxPos){
-        maxPos = termPos[i];
-        result[2] = i;
-      }
-    }
-    if ((maxPos - minPos) <= (this.distance - 1))
-      result[0] = 1;
-    return result; 
-  }
-
 
   /**
    * syntaxCheckArgResults does syntax checking that can only be done after query arguments are
@@ -180,7 +197,7 @@ public class QryopIlWindow extends QryopIl {
 
       if (!(this.args.get(i) instanceof QryopIl))
         QryEval.fatalError("Error:  Invalid argument in " + this.toString());
-      else if ((i > 0) && (!ptrs.get(i).invList.field.equals(ptrs.get(0).invList.field)))
+      else if ((i > 0) && (!ptrs.get(i).cursor.field().equals(ptrs.get(0).cursor.field())))
         QryEval.fatalError("Error:  Arguments must be in the same field:  " + this.toString());
     }
 
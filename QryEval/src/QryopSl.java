@@ -10,14 +10,27 @@
  */
 
 import java.io.*;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 
 public abstract class QryopSl extends Qryop {
 
+  /**
+   * Wrap each argument that doesn't return score lists in a #SCORE operator. Evaluation,
+   * compilation and the query rewriters all see the same query tree.
+   * 
+   * @return void
+   */
+  public void wrapScoreArgs() {
+    for (int i = 0; i < this.args.size(); i++)
+      if (!QryopSl.class.isInstance(this.args.get(i)))
+        this.args.set(i, new QryopSlScore(this.args.get(i)));
+  }
+
   /**
    * Use the specified retrieval model to evaluate the query arguments. Define and return DaaT
-   * pointers that the query operator can use.
+   * pointers that the query operator can use. If parallel:threads is set, expensive arguments are
+   * evaluated in parallel (see ParallelEvaluator).
    * 
    * @param r
    *          A retrieval model that controls how the operator behaves.
@@ -26,17 +39,18 @@ public abstract class QryopSl extends Qryop {
    */
   public void allocDaaTPtrs(RetrievalModel r) throws IOException {
 
-    for (int i = 0; i < this.args.size(); i++) {
+    wrapScoreArgs();
 
-      // If this argument doesn't return ScoreLists, wrap it
-      // in a #SCORE operator.
+    QryResult[] results = null;
 
-      if (!QryopSl.class.isInstance(this.args.get(i)))
-        this.args.set(i, new QryopSlScore(this.args.get(i)));
+    if (QryEval.parallelEvaluator != null)
+      results = QryEval.parallelEvaluator.evaluate(this.args, r);
 
+    for (int i = 0; i < this.args.size(); i++) {
       DaaTPtr ptri = new DaaTPtr();
-      ptri.invList = null;
-      ptri.scoreList = this.args.get(i).evaluate(r).docScores;
+      ptri.cursor = null;
+      ptri.scoreList = (results != null) ? results[i].docScores
+              : this.args.get(i).evaluate(r).docScores;
       ptri.nextDoc = 0;
       ptri.size = ptri.scoreList.scores.size();
 
@@ -45,40 +59,126 @@ public abstract class QryopSl extends Qryop {
   }
   
   /**
-   * get all uique docids, add them to an ArrayList
-   * @return All doc id appears in this operator.
+   * Score lists don't have positions, so the arguments of this operator
+   * only need positions if they are matched by position themselves.
+   * 
+   * @param needed
+   *          Ignored.
+   * @return void
+   */
+  public void setPositionsNeeded(boolean needed) {
+    super.setPositionsNeeded(false);
+  }
+
+  /**
+   * Get an accumulator for the arguments' score lists (in daatPtrs). It is dense when the union of
+   * the lists is expected to be a large fraction of the collection, and a hash map otherwise.
+   * 
+   * @return An empty accumulator; call release() when done.
+   */
+  protected ScoreAccumulator acquireAccumulator() {
+    int[] sizes = new int[this.daatPtrs.size()];
+
+    for (int i = 0; i < sizes.length; i++)
+      sizes[i] = this.daatPtrs.get(i).size;
+
+    return ScoreAccumulator.acquire(sizes, QryEval.READER.maxDoc());
+  }
+
+  /**
+   * The union of the arguments' score lists.
+   */
+  public static class UniqueDocids {
+
+    /** The unique docids, in increasing order. */
+    public int[] docids;
+
+    /**
+     * For each argument, the index in docids of each document in its score list:
+     * docids[positions[i][n]] is the docid of argument i's n-th document.
+     */
+    public int[][] positions;
+  }
+
+  /**
+   * Merge the arguments' score lists into their union, in one pass. The next document of each
+   * argument is kept in a heap ordered by docid, so each document costs O(log args).
+   * 
+   * @return The unique docids and the position of each argument's documents among them.
    */
-  public ArrayList<Integer> getUniqueDocid() {
+  public UniqueDocids getUniqueDocid() {
     if (this.daatPtrs == null)
       return null;
-    ArrayList<Integer> uniqueDocidList = new ArrayList<Integer>();
-    int currSmallestDocid = Integer.MIN_VALUE;
-    DaaTPtr ptr;
-    int smallestOfThisIter;
-    boolean hasMoreDoc = true;
-    while (hasMoreDoc) {
-      hasMoreDoc = false;
-      smallestOfThisIter = Integer.MAX_VALUE;
-      for (int i = 0; i < this.daatPtrs.size(); i++) {
-        ptr = this.daatPtrs.get(i);
-        if (ptr.nextDoc >= ptr.size)
-          continue;
-        if (ptr.scoreList.getDocid(ptr.nextDoc) == currSmallestDocid)
-          ptr.nextDoc++;
-        if (ptr.nextDoc < ptr.size)
-          hasMoreDoc = true;
-        if (ptr.nextDoc < ptr.size && ptr.scoreList.getDocid(ptr.nextDoc) < smallestOfThisIter)
-          smallestOfThisIter = ptr.scoreList.getDocid(ptr.nextDoc);
-      }
-      if (!hasMoreDoc)
+
+    int numArgs = this.daatPtrs.size();
+    int[] next = new int[numArgs]; // the next document of each argument
+    int[] heap = new int[numArgs]; // argument indexes, smallest next docid first
+    int heapSize = 0;
+    int total = 0;
+    UniqueDocids union = new UniqueDocids();
+
+    union.positions = new int[numArgs][];
+
+    for (int i = 0; i < numArgs; i++) {
+      DaaTPtr ptr = this.daatPtrs.get(i);
+      union.positions[i] = new int[ptr.size];
+      total += ptr.size;
+      if (ptr.size > 0)
+        heap[heapSize++] = i;
+    }
+
+    for (int h = heapSize / 2 - 1; h >= 0; h--)
+      siftDown(heap, heapSize, h, next);
+
+    int[] docids = new int[total];
+    int numDocids = 0;
+
+    while (heapSize > 0) {
+      int i = heap[0];
+      DaaTPtr ptr = this.daatPtrs.get(i);
+      int docid = ptr.scoreList.getDocid(next[i]);
+
+      if ((numDocids == 0) || (docids[numDocids - 1] != docid))
+        docids[numDocids++] = docid;
+
+      union.positions[i][next[i]] = numDocids - 1;
+
+      if (++next[i] >= ptr.size)
+        heap[0] = heap[--heapSize];
+      if (heapSize > 0)
+        siftDown(heap, heapSize, 0, next);
+    }
+
+    union.docids = Arrays.copyOf(docids, numDocids);
+    return union;
+  }
+
+  /**
+   * Restore the heap order of getUniqueDocid's heap below position h.
+   */
+  private void siftDown(int[] heap, int heapSize, int h, int[] next) {
+    int i = heap[h];
+    int docid = heapDocid(i, next);
+
+    while (2 * h + 1 < heapSize) {
+      int child = 2 * h + 1;
+
+      if ((child + 1 < heapSize)
+              && (heapDocid(heap[child + 1], next) < heapDocid(heap[child], next)))
+        child++;
+
+      if (heapDocid(heap[child], next) >= docid)
         break;
-      uniqueDocidList.add(smallestOfThisIter);
-      currSmallestDocid = smallestOfThisIter;
+
+      heap[h] = heap[child];
+      h = child;
     }
-    // reset of ptr's nextdoc
-    for (int i = 0; i < this.daatPtrs.size(); i++)
-      this.daatPtrs.get(i).nextDoc = 0;
-    return uniqueDocidList;
+
+    heap[h] = i;
+  }
+
+  private int heapDocid(int i, int[] next) {
+    return this.daatPtrs.get(i).scoreList.getDocid(next[i]);
   }
 
   /*
@@ -93,4 +193,137 @@ public abstract class QryopSl extends Qryop {
    */
   public abstract double getDefaultScore(RetrievalModel r, long docid) throws IOException;
 
+  /**
+   * Calculate the default scores of a batch of documents, e.g., all of the documents that an
+   * argument doesn't match. The scores are the same as getDefaultScore's. By default this calls
+   * getDefaultScore for each document; operators override it so that model parameters are looked
+   * up once per batch instead of once per document.
+   * 
+   * @param r
+   *          A retrieval model that controls how the operator behaves.
+   * @param docids
+   *          The internal ids of the documents.
+   * @param count
+   *          The number of documents in docids.
+   * @param scores
+   *          Filled in with the default scores of the documents.
+   * @throws IOException
+   */
+  public void getDefaultScores(RetrievalModel r, int[] docids, int count, double[] scores)
+          throws IOException {
+    for (int j = 0; j < count; j++)
+      scores[j] = getDefaultScore(r, docids[j]);
+  }
+
+  /**
+   * Find the documents in a union that an argument doesn't match.
+   * 
+   * @param union
+   *          The union of the arguments' score lists.
+   * @param i
+   *          An argument index.
+   * @param missing
+   *          Filled in with the docids, in increasing order.
+   * @return The number of docids.
+   */
+  protected static int getMissingDocids(UniqueDocids union, int i, int[] missing) {
+    int[] positions = union.positions[i];
+    int count = 0;
+    int m = 0;
+
+    for (int n = 0; n < positions.length; n++) {
+      for (; m < positions[n]; m++)
+        missing[count++] = union.docids[m];
+      m++;
+    }
+    for (; m < union.docids.length; m++)
+      missing[count++] = union.docids[m];
+
+    return count;
+  }
+
+  /**
+   * Compile the query operator into a plan for a retrieval model (see QryPlan). Operators that
+   * don't have their own plan are evaluated into a score list, and the plan's scorer iterates over
+   * it.
+   * 
+   * @param r
+   *          A retrieval model that controls how the operator behaves.
+   * @return The plan.
+   * @throws IOException
+   */
+  public QryPlan compile(final RetrievalModel r) throws IOException {
+    return new QryPlan() {
+      public Scorer scorer() throws IOException {
+        return new ScoreListScorer(r, evaluate(r).docScores);
+      }
+    };
+  }
+
+  /**
+   * Compile each query argument. Arguments are wrapped by wrapScoreArgs first.
+   * 
+   * @param r
+   *          A retrieval model that controls how the operator behaves.
+   * @return The argument plans, in argument order.
+   * @throws IOException
+   */
+  protected QryPlan[] compileArgs(RetrievalModel r) throws IOException {
+    QryPlan[] plans = new QryPlan[this.args.size()];
+
+    wrapScoreArgs();
+
+    for (int i = 0; i < this.args.size(); i++)
+      plans[i] = ((QryopSl) this.args.get(i)).compile(r);
+
+    return plans;
+  }
+
+  /**
+   * A scorer that iterates over a score list that was already computed.
+   */
+  protected class ScoreListScorer extends Scorer {
+
+    private RetrievalModel r;
+    private ScoreList scoreList;
+    private int n = -1;
+
+    public ScoreListScorer(RetrievalModel r, ScoreList scoreList) {
+      this.r = r;
+      this.scoreList = scoreList;
+    }
+
+    public int docID() {
+      if (this.n < 0)
+        return -1;
+      if (this.n >= this.scoreList.scores.size())
+        return NO_MORE_DOCS;
+      return this.scoreList.getDocid(this.n);
+    }
+
+    public int nextDoc() {
+      if (this.n < this.scoreList.scores.size())
+        this.n++;
+      return docID();
+    }
+
+    public int advance(int target) {
+      if (docID() < target)
+        this.n = this.scoreList.findDocid(Math.max(this.n, 0), target);
+      return docID();
+    }
+
+    public double score() {
+      return this.scoreList.getDocidScore(this.n);
+    }
+
+    public double defaultScore(int docid) throws IOException {
+      return getDefaultScore(this.r, docid);
+    }
+
+    public long cost() {
+      return this.scoreList.scores.size();
+    }
+  }
+
 }
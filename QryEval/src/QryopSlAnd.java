@@ -83,14 +83,15 @@ public class QryopSlAnd extends QryopSl {
     // Otherwise it is necessary to use flags, which is also ugly.
 
     DaaTPtr ptr0 = this.daatPtrs.get(0);
+    boolean ranked = (r instanceof RetrievalModelRankedBoolean);
 
     EVALUATEDOCUMENTS: for (; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc++) {
 
       int ptr0Docid = ptr0.scoreList.getDocid(ptr0.nextDoc);
       double docScore = 1.0;
 
-      if (r instanceof RetrievalModelRankedBoolean)
-        docScore = (double) ptr0.scoreList.getDocidScore(ptr0.nextDoc);
+      if (ranked)
+        docScore = ptr0.scoreList.getDocidScore(ptr0.nextDoc);
 
       // Do the other query arguments have the ptr0Docid?
 
@@ -98,18 +99,17 @@ public class QryopSlAnd extends QryopSl {
 
         DaaTPtr ptrj = this.daatPtrs.get(j);
 
-        while (true) {
-          if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
-            break EVALUATEDOCUMENTS; // No more docs can match
-          else if (ptrj.scoreList.getDocid(ptrj.nextDoc) > ptr0Docid)
-            continue EVALUATEDOCUMENTS; // The ptr0docid can't match.
-          else if (ptrj.scoreList.getDocid(ptrj.nextDoc) < ptr0Docid)
-            ptrj.nextDoc++; // Not yet at the right doc.
-          else {// now at the right doc, update score
-            if (r instanceof RetrievalModelRankedBoolean) {
-              docScore = Math.min(docScore, (double) ptrj.scoreList.getDocidScore(ptrj.nextDoc));
-            }
-            break; // ptrj matches ptr0Docid
+        // Skip ahead to ptr0Docid instead of stepping through ptrj.
+
+        int ptrjDocid = ptrj.advance(ptr0Docid);
+
+        if (ptrjDocid == PostingCursor.NO_MORE_DOCS)
+          break EVALUATEDOCUMENTS; // No more docs can match
+        else if (ptrjDocid > ptr0Docid)
+          continue EVALUATEDOCUMENTS; // The ptr0docid can't match.
+        else {// now at the right doc, update score
+          if (ranked) {
+            docScore = Math.min(docScore, ptrj.scoreList.getDocidScore(ptrj.nextDoc));
           }
         }
       }
@@ -124,7 +124,8 @@ public class QryopSlAnd extends QryopSl {
 
   /**
    * Evaluates the query operator for Indri retrieval model, including any child operators and
-   * returns the result.
+   * returns the result. In log space the score is the mean of the arguments' log scores, which is
+   * the log of the usual score, so the product of many small probabilities can't underflow.
    * 
    * @param r
    *          A retrieval model that controls how the operator behaves.
@@ -136,37 +137,36 @@ public class QryopSlAnd extends QryopSl {
     QryResult result = new QryResult();
 
     int q = this.args.size();
-    ArrayList<Integer> uniqueDocid = getUniqueDocid(); // get list of all doc id
-    int docidSize = uniqueDocid.size();
-    ArrayList<Double> scores = new ArrayList<Double>();// initialize socres
-    for (int i = 0; i < docidSize; i++)
-      scores.add(1.0);
+    boolean logSpace = ((RetrievalModelIndri) r).isLogSpace();
+    UniqueDocids union = getUniqueDocid(); // all doc ids, and where each term's docs are
+    int[] uniqueDocid = union.docids;
+    int docidSize = uniqueDocid.length;
+    double[] scores = new double[docidSize];// initialize socres
+    Arrays.fill(scores, logSpace ? 0.0 : 1.0);
+    int[] missing = new int[docidSize];
+    double[] defaults = new double[docidSize];
     
-    int ptriDocid;
     // iterate over all terms
     for (int i = 0; i < this.daatPtrs.size(); i++) { 
       DaaTPtr ptri = this.daatPtrs.get(i);
-      int m = 0;
+      int[] positions = union.positions[i];
+      // default scores of the doc ids that are not in this term, in one batch
+      int numMissing = getMissingDocids(union, i, missing);
+      ((QryopSl) this.args.get(i)).getDefaultScores(r, missing, numMissing, defaults);
+      int m = 0, k = 0;
       for (int n = 0; n < ptri.size; n++) { // iterate over all doc id in this term
-        ptriDocid = ptri.scoreList.getDocid(n);
-        while (uniqueDocid.get(m) != ptriDocid) { 
-          // if doc id in uniqueDocid is less than term's current doc id
-          scores.set(m, scores.get(m) * ((QryopSl)this.args.get(i)).getDefaultScore(r, 
-                  uniqueDocid.get(m)));     // calculate default score
-          m++;
-        }
+        for (; m < positions[n]; m++)
+          // doc ids before the term's current doc id get the default score
+          scores[m] = combine(scores[m], defaults[k++], logSpace);
         // now they have the same doc id, simply multiply both socores
-        scores.set(m, scores.get(m) * ptri.scoreList.getDocidScore(n));
-        m++;
-      }
-      while (m < docidSize) {  // deal with the doc id that are not in this term
-        scores.set(m, scores.get(m) * ((QryopSl)this.args.get(i)).getDefaultScore(r, 
-                uniqueDocid.get(m)));
+        scores[m] = combine(scores[m], ptri.scoreList.getDocidScore(n), logSpace);
         m++;
       }
+      for (; m < docidSize; m++)  // deal with the doc id that are not in this term
+        scores[m] = combine(scores[m], defaults[k++], logSpace);
     }
-    for (int i = 0; i < uniqueDocid.size(); i++) {
-      result.docScores.add(uniqueDocid.get(i), Math.pow(scores.get(i), 1.0 / q));
+    for (int i = 0; i < docidSize; i++) {
+      result.docScores.add(uniqueDocid[i], root(scores[i], q, logSpace));
     }
     freeDaaTPtrs();
 
@@ -185,22 +185,174 @@ public class QryopSlAnd extends QryopSl {
    */
   public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
 
-    if (r instanceof RetrievalModelUnrankedBoolean)
-      return (0.0);
-    if (r instanceof RetrievalModelRankedBoolean)
-      return 0.0;
+    // Only Indri has default scores other than 0.
+
     if (r instanceof RetrievalModelIndri) {
-      double defaultScore = 1.0;
+      boolean logSpace = ((RetrievalModelIndri) r).isLogSpace();
+      double defaultScore = logSpace ? 0.0 : 1.0;
       int q = this.args.size();
       for (Qryop operation: this.args) {
-        defaultScore *= ((QryopSl)operation).getDefaultScore(r, docid);
+        defaultScore = combine(defaultScore, ((QryopSl)operation).getDefaultScore(r, docid),
+                logSpace);
       }
-      return Math.pow(defaultScore, 1.0/q);
+      return root(defaultScore, q, logSpace);
     }
 
     return 0.0;
   }
 
+  /**
+   * Calculate the default scores of a batch of documents, with the same arithmetic as
+   * getDefaultScore: each argument's batch is computed once and multiplied in.
+   */
+  public void getDefaultScores(RetrievalModel r, int[] docids, int count, double[] scores)
+          throws IOException {
+
+    if (!(r instanceof RetrievalModelIndri)) {
+      super.getDefaultScores(r, docids, count, scores);
+      return;
+    }
+
+    int q = this.args.size();
+    boolean logSpace = ((RetrievalModelIndri) r).isLogSpace();
+    double[] argScores = new double[count];
+
+    Arrays.fill(scores, 0, count, logSpace ? 0.0 : 1.0);
+    for (Qryop operation : this.args) {
+      ((QryopSl) operation).getDefaultScores(r, docids, count, argScores);
+      for (int j = 0; j < count; j++)
+        scores[j] = combine(scores[j], argScores[j], logSpace);
+    }
+    for (int j = 0; j < count; j++)
+      scores[j] = root(scores[j], q, logSpace);
+  }
+
+  /**
+   * Compile the query operator into a plan that evaluates it one document at a time. For boolean
+   * retrieval models it matches documents that all arguments match; for Indri it matches the union
+   * and uses default scores for the arguments that don't match.
+   * 
+   * @param r
+   *          A retrieval model that controls how the operator behaves.
+   * @return The plan.
+   * @throws IOException
+   */
+  public QryPlan compile(RetrievalModel r) throws IOException {
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      final QryPlan[] args = compileArgs(r);
+
+      return new QryPlan() {
+        public Scorer scorer() throws IOException {
+          return new Scorer.Conjunction(scorers(args)) {
+            public double score() {
+              return 1.0;
+            }
+
+            public double defaultScore(int docid) {
+              return 0.0;
+            }
+          };
+        }
+      };
+    } else if (r instanceof RetrievalModelRankedBoolean) {
+      final QryPlan[] args = compileArgs(r);
+
+      return new QryPlan() {
+        public Scorer scorer() throws IOException {
+          return new Scorer.Conjunction(scorers(args)) {
+            public double score() throws IOException {
+              double docScore = this.scorers[0].score();
+              for (int i = 1; i < this.scorers.length; i++)
+                docScore = Math.min(docScore, this.scorers[i].score());
+              return docScore;
+            }
+
+            public double defaultScore(int docid) {
+              return 0.0;
+            }
+          };
+        }
+      };
+    } else if (r instanceof RetrievalModelIndri) {
+      final QryPlan[] args = compileArgs(r);
+      final int q = this.args.size();
+      final boolean logSpace = ((RetrievalModelIndri) r).isLogSpace();
+      final boolean pruning = !QryEval.pruning.equals("none");
+      final boolean useBlocks = QryEval.pruning.equals("bmw");
+
+      return new QryPlan() {
+        public Scorer scorer() throws IOException {
+          Scorer[] scorers = scorers(args);
+
+          // With top-k pruning, skip documents whose score bound can't enter the top k.
+
+          if (pruning && IndriWandScorer.canBound(scorers, logSpace)) {
+            double[] weights = new double[q];
+            Arrays.fill(weights, 1.0 / q);
+
+            return new IndriWandScorer(scorers, weights, useBlocks, logSpace) {
+              public double score() throws IOException {
+                return indriScore(this.scorers, this.doc, q, logSpace);
+              }
+
+              public double defaultScore(int docid) throws IOException {
+                return indriDefaultScore(this.scorers, docid, q, logSpace);
+              }
+            };
+          }
+
+          return new Scorer.Disjunction(scorers) {
+            public double score() throws IOException {
+              return indriScore(this.scorers, this.doc, q, logSpace);
+            }
+
+            public double defaultScore(int docid) throws IOException {
+              return indriDefaultScore(this.scorers, docid, q, logSpace);
+            }
+          };
+        }
+      };
+    }
+
+    return super.compile(r);
+  }
+
+  /**
+   * The Indri score of a document: the product of the arguments' scores, using default scores for
+   * the arguments that don't match, to the power 1/q.
+   */
+  private static double indriScore(Scorer[] scorers, int doc, int q, boolean logSpace)
+          throws IOException {
+    double docScore = logSpace ? 0.0 : 1.0;
+    for (int i = 0; i < scorers.length; i++)
+      docScore = combine(docScore, (scorers[i].docID() == doc) ?
+              scorers[i].score() : scorers[i].defaultScore(doc), logSpace);
+    return root(docScore, q, logSpace);
+  }
+
+  private static double indriDefaultScore(Scorer[] scorers, int docid, int q, boolean logSpace)
+          throws IOException {
+    double defaultScore = logSpace ? 0.0 : 1.0;
+    for (int i = 0; i < scorers.length; i++)
+      defaultScore = combine(defaultScore, scorers[i].defaultScore(docid), logSpace);
+    return root(defaultScore, q, logSpace);
+  }
+
+  /**
+   * Multiply an argument's score into a product, or add it to a sum of log scores.
+   */
+  private static double combine(double score, double argScore, boolean logSpace) {
+    return logSpace ? score + argScore : score * argScore;
+  }
+
+  /**
+   * The q-th root of a product, or the mean of a sum of log scores.
+   */
+  private static double root(double score, int q, boolean logSpace) {
+    return logSpace ? score / q : Math.pow(score, 1.0 / q);
+  }
+
   /*
    * Return a string version of this query operator.
    * 
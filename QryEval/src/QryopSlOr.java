@@ -60,45 +60,36 @@ public class QryopSlOr extends QryopSl {
 
     allocDaaTPtrs(r);
     QryResult result = new QryResult();
-
-    // use hashMap to check whether a DocID has appeared or not.
-
-    HashMap<Integer, Double> docidScoreMap = new HashMap<Integer, Double>();
-
-    double docScore = 1.0, docScoreOld;
-    DaaTPtr ptri;
-    int ptriDocid;
-
-    for (int i = 0; i < this.daatPtrs.size(); i++) {
-      ptri = this.daatPtrs.get(i);
-      for (int j = 0; j < ptri.scoreList.scores.size(); j++) {
-        docScore = 1.0;
-        ptriDocid = ptri.scoreList.getDocid(j);
-        //System.out.print("j's docID: "+ptriDocid + ":");
-        //System.out.println(ptri.scoreList.getDocidScore(j));
-        
-        if (r instanceof RetrievalModelRankedBoolean)
-          docScore = (double) ptri.scoreList.getDocidScore(j);
-
-        if (!docidScoreMap.containsKey(ptriDocid))
-          // if it's not in the hashMap, put it in the hashMap
-          docidScoreMap.put(ptriDocid, docScore);
-
-        else if (r instanceof RetrievalModelRankedBoolean) {
-          docScoreOld = docidScoreMap.get(ptriDocid);
-          docidScoreMap.put(ptriDocid, Math.max(docScore, docScoreOld));
+    ScoreAccumulator acc = acquireAccumulator();
+    boolean ranked = (r instanceof RetrievalModelRankedBoolean);
+
+    try {
+      for (int i = 0; i < this.daatPtrs.size(); i++) {
+        DaaTPtr ptri = this.daatPtrs.get(i);
+        for (int j = 0; j < ptri.size; j++) {
+          int ptriDocid = ptri.scoreList.getDocid(j);
+          double docScore = 1.0;
+
+          if (ranked)
+            docScore = ptri.scoreList.getDocidScore(j);
+
+          if (!acc.isTouched(ptriDocid))
+            acc.set(ptriDocid, docScore);
+          else if (ranked)
+            acc.set(ptriDocid, Math.max(docScore, acc.get(ptriDocid)));
         }
       }
+      freeDaaTPtrs();
+      acc.addTo(result.docScores);
+    } finally {
+      acc.release();
     }
-    freeDaaTPtrs();
-    ArrayList<Integer> sortedKeys = new ArrayList<Integer>(docidScoreMap.keySet());
-    Collections.sort(sortedKeys);
-    for (int i = 0; i < sortedKeys.size(); i++)
-      result.docScores.add(sortedKeys.get(i), docidScoreMap.get(sortedKeys.get(i)));
+
     return result;
   }
+
   /*
-  public QryResult evaluateBoolean(RetrievalModel r) throws IOException {
+    public QryResult evaluateBoolean(RetrievalModel r) throws IOException {
   long st = System.currentTimeMillis();
   // Initialization
 
@@ -154,14 +145,61 @@ public class QryopSlOr extends QryopSl {
    */
   public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
 
-    if (r instanceof RetrievalModelUnrankedBoolean)
-      return (0.0);
-    if (r instanceof RetrievalModelRankedBoolean)
-      return 0.0;
-
     return 0.0;
   }
 
+  /**
+   * Compile the query operator into a plan that evaluates it one document at a time. It matches
+   * the union of the arguments.
+   * 
+   * @param r
+   *          A retrieval model that controls how the operator behaves.
+   * @return The plan.
+   * @throws IOException
+   */
+  public QryPlan compile(RetrievalModel r) throws IOException {
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      final QryPlan[] args = compileArgs(r);
+
+      return new QryPlan() {
+        public Scorer scorer() throws IOException {
+          return new Scorer.Disjunction(scorers(args)) {
+            public double score() {
+              return 1.0;
+            }
+
+            public double defaultScore(int docid) {
+              return 0.0;
+            }
+          };
+        }
+      };
+    } else if (r instanceof RetrievalModelRankedBoolean) {
+      final QryPlan[] args = compileArgs(r);
+
+      return new QryPlan() {
+        public Scorer scorer() throws IOException {
+          return new Scorer.Disjunction(scorers(args)) {
+            public double score() throws IOException {
+              double docScore = Double.NEGATIVE_INFINITY;
+              for (int i = 0; i < this.scorers.length; i++)
+                if (this.scorers[i].docID() == this.doc)
+                  docScore = Math.max(docScore, this.scorers[i].score());
+              return docScore;
+            }
+
+            public double defaultScore(int docid) {
+              return 0.0;
+            }
+          };
+        }
+      };
+    }
+
+    return super.compile(r);
+  }
+
   /*
    * Return a string version of this query operator.
    * 
@@ -11,12 +11,17 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.AtomicReaderContext;
+
 public class QryopSlScore extends QryopSl {
   
   public String field; // term's field
   public int collectionTermFreq; // term's ctf
   public long collectionLength; // document length in
   public float maxLikeliEstim;
+  private DocLengthStore.FieldLengths docLengths; // lengths of the term's field
+  private float mu, lambda; // Indri parameters, for default scores
+  private boolean logSpace;
 
   /**
    * Construct a new SCORE operator. The SCORE operator accepts just one argument.
@@ -49,6 +54,14 @@ public class QryopSlScore extends QryopSl {
     this.args.add(a);
   }
 
+  /**
+   * The argument of a SCORE operator is an inverted list, so it isn't wrapped.
+   * 
+   * @return void
+   */
+  public void wrapScoreArgs() {
+  }
+
   /**
    * Evaluate the query operator.
    * 
@@ -80,32 +93,30 @@ public class QryopSlScore extends QryopSl {
    */
   public QryResult evaluateBoolean(RetrievalModel r) throws IOException {
 
-    // Evaluate the query argument.
+    // Evaluate the query argument. If it returns a score list (which
+    // is very possible), there is nothing to score.
+
+    if (!(this.args.get(0) instanceof QryopIl))
+      return this.args.get(0).evaluate(r);
 
-    QryResult result = args.get(0).evaluate(r);
+    // Each pass of the loop computes a score for one document. The
+    // inverted list is read through a cursor, so it is scored as it
+    // is read instead of being copied into memory first.
 
-    // Each pass of the loop computes a score for one document. Note:
-    // If the evaluate operation above returned a score list (which is
-    // very possible), this loop gets skipped.
-    if (result == null)
-      return null;
+    PostingCursor postings = ((QryopIl) this.args.get(0)).cursor(r);
+    QryResult result = new QryResult();
+    int docid;
 
     // DIFFERENT RETRIEVAL MODELS IMPLEMENT THIS DIFFERENTLY.
     // Unranked Boolean. All matching documents get a score of 1.0.
     if (r instanceof RetrievalModelUnrankedBoolean) {
-      for (int i = 0; i < result.invertedList.df; i++)
-        result.docScores.add(result.invertedList.postings.get(i).docid, (float) 1.0);
+      while ((docid = postings.nextDoc()) != PostingCursor.NO_MORE_DOCS)
+        result.docScores.add(docid, (float) 1.0);
     } else if (r instanceof RetrievalModelRankedBoolean) {
-      for (int i = 0; i < result.invertedList.df; i++)
+      while ((docid = postings.nextDoc()) != PostingCursor.NO_MORE_DOCS)
         // for RankedBoolean, use term frequency as score
-        result.docScores.add(result.invertedList.postings.get(i).docid,
-                result.invertedList.getTf(i));
+        result.docScores.add(docid, postings.freq());
     }
-    // The SCORE operator should not return a populated inverted list.
-    // If there is one, replace it with an empty inverted list.
-
-    if (result.invertedList.df > 0)
-      result.invertedList = new InvList();
 
     return result;
   }
@@ -120,15 +131,14 @@ public class QryopSlScore extends QryopSl {
    */
   public QryResult evaluateBMxx(RetrievalModel r) throws IOException {
 
-    // Evaluate the query argument.
+    // Evaluate the query argument. If it returns a score list (which
+    // is very possible), there is nothing to score.
 
-    QryResult result = args.get(0).evaluate(r);
+    if (!(this.args.get(0) instanceof QryopIl))
+      return this.args.get(0).evaluate(r);
 
-    // Each pass of the loop computes a score for one document. Note:
-    // If the evaluate operation above returned a score list (which is
-    // very possible), this loop gets skipped.
-    if (result == null)
-      return null;
+    PostingCursor postings = ((QryopIl) this.args.get(0)).cursor(r);
+    QryResult result = new QryResult();
 
     if (r instanceof RetrievalModelBMxx) {
       // load parameters
@@ -136,34 +146,27 @@ public class QryopSlScore extends QryopSl {
       float b = ((RetrievalModelBMxx) r).getParameter("b");
 
       // some constant parameters
-      int docFreq = result.invertedList.df; // document frequency containing this term
-      String field = result.invertedList.field; // term field
-      int N = QryEval.READER.numDocs(); // total number of documents
-      float avgDocLen = (float) QryEval.READER.getSumTotalTermFreq(field)
-              / QryEval.READER.getDocCount(field); // average doc length
+      int docFreq = postings.df(); // document frequency containing this term
+      String field = postings.field(); // term field
+      int N = QryEval.collectionStats.numDocs(); // total number of documents
+      float avgDocLen = QryEval.collectionStats.avgDocLength(field); // average doc length
 
       // RSJ weight
       float RSJWeight = (float) Math.log((N - docFreq + 0.5) / (docFreq + 0.5));
+      DocLengthStore.FieldLengths docLengths = QryEval.docLenStore.getField(field);
 
       int tf, docid;
       long docLen;
       float tfWeight;
-      for (int i = 0; i < docFreq; i++) {
-        tf = result.invertedList.getTf(i);
-        docid = result.invertedList.getDocid(i);
-        docLen = QryEval.docLenStore.getDocLength(field, docid);
+      while ((docid = postings.nextDoc()) != PostingCursor.NO_MORE_DOCS) {
+        tf = postings.freq();
+        docLen = docLengths.get(docid);
         // tf Weight
         tfWeight = tf / (tf + k_1 * (1 - b + b * docLen / avgDocLen));
         result.docScores.add(docid, RSJWeight * tfWeight);
       }
     }
 
-    // The SCORE operator should not return a populated inverted list.
-    // If there is one, replace it with an empty inverted list.
-
-    if (result.invertedList.df > 0)
-      result.invertedList = new InvList();
-
     return result;
   }
 
@@ -177,46 +180,43 @@ public class QryopSlScore extends QryopSl {
    */
   public QryResult evaluateIndri(RetrievalModel r) throws IOException {
 
-    // Evaluate the query argument.
+    // Evaluate the query argument. If it returns a score list (which
+    // is very possible), there is nothing to score.
 
-    QryResult result = args.get(0).evaluate(r);
+    if (!(this.args.get(0) instanceof QryopIl))
+      return this.args.get(0).evaluate(r);
 
-    // Each pass of the loop computes a score for one document. Note:
-    // If the evaluate operation above returned a score list (which is
-    // very possible), this loop gets skipped.
-    if (result == null)
-      return null;
+    PostingCursor postings = ((QryopIl) this.args.get(0)).cursor(r);
+    QryResult result = new QryResult();
 
     if (r instanceof RetrievalModelIndri) {
       // load parameters
       float mu = ((RetrievalModelIndri) r).getParameter("mu");
       float lambda = ((RetrievalModelIndri) r).getParameter("lambda");
-
-      // some constant parameters
-      int docFreq = result.invertedList.df; // document frequency containing this term
-      this.field = result.invertedList.field; // term field
-      this.collectionLength = QryEval.READER.getSumTotalTermFreq(field);
-      this.collectionTermFreq = result.invertedList.ctf;
+      boolean logSpace = ((RetrievalModelIndri) r).isLogSpace();
+
+      // some constant parameters, kept for default scores
+      this.mu = mu;
+      this.lambda = lambda;
+      this.logSpace = logSpace;
+      this.field = postings.field(); // term field
+      this.collectionLength = QryEval.collectionStats.sumTotalTermFreq(field);
+      this.collectionTermFreq = (int) postings.ctf();
       this.maxLikeliEstim = (float) collectionTermFreq / collectionLength;
+      this.docLengths = QryEval.docLenStore.getField(field);
       int tf, docid;
       long docLen;
+      float score;
 
-      for (int i = 0; i < docFreq; i++) {
-        tf = result.invertedList.getTf(i);
-        docid = result.invertedList.getDocid(i);
-        docLen = QryEval.docLenStore.getDocLength(field, docid);
+      while ((docid = postings.nextDoc()) != PostingCursor.NO_MORE_DOCS) {
+        tf = postings.freq();
+        docLen = docLengths.get(docid);
         // tf Weight
-        result.docScores.add(docid, lambda * (tf + mu * maxLikeliEstim) / (docLen + mu)
-                + (1 - lambda) * maxLikeliEstim);
+        score = lambda * (tf + mu * maxLikeliEstim) / (docLen + mu) + (1 - lambda) * maxLikeliEstim;
+        result.docScores.add(docid, logSpace ? Math.log(score) : score);
       }
     }
 
-    // The SCORE operator should not return a populated inverted list.
-    // If there is one, replace it with an empty inverted list.
-
-    if (result.invertedList.df > 0)
-      result.invertedList = new InvList();
-
     return result;
   }
 
@@ -232,20 +232,411 @@ public class QryopSlScore extends QryopSl {
    */
   public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
 
-    if (r instanceof RetrievalModelUnrankedBoolean)
-      return (0.0);
-    if (r instanceof RetrievalModelRankedBoolean)
-      return (0.0);
+    // The Indri parameters were kept by evaluateIndri.  Other models
+    // have a default score of 0.
+
     if (r instanceof RetrievalModelIndri) {
-      float mu = ((RetrievalModelIndri) r).getParameter("mu");
-      float lambda = ((RetrievalModelIndri) r).getParameter("lambda");
-      long docLength = QryEval.docLenStore.getDocLength(field, (int)docid);
-      return  (lambda * mu / (docLength + mu) + (1 - lambda)) * maxLikeliEstim;
+      long docLength = docLengths.get((int)docid);
+      float defaultScore = (lambda * mu / (docLength + mu) + (1 - lambda)) * maxLikeliEstim;
+      return logSpace ? Math.log(defaultScore) : defaultScore;
     }
 
     return 0.0;
   }
 
+  /**
+   * Calculate the default scores of a batch of documents. The arithmetic is the same as
+   * getDefaultScore's.
+   */
+  public void getDefaultScores(RetrievalModel r, int[] docids, int count, double[] scores)
+          throws IOException {
+
+    if (!(r instanceof RetrievalModelIndri)) {
+      super.getDefaultScores(r, docids, count, scores);
+      return;
+    }
+
+    float lambdaMu = lambda * mu;
+    float oneMinusLambda = 1 - lambda;
+    float p = this.maxLikeliEstim;
+    DocLengthStore.FieldLengths lengths = this.docLengths;
+
+    for (int j = 0; j < count; j++) {
+      long docLength = lengths.get(docids[j]);
+      scores[j] = (lambdaMu / (docLength + mu) + oneMinusLambda) * p;
+    }
+
+    if (logSpace)
+      for (int j = 0; j < count; j++)
+        scores[j] = Math.log(scores[j]);
+  }
+
+  /**
+   * Compile the operator into a plan that scores the argument's inverted list one document at a
+   * time, with the same formulas as the evaluate methods. Each retrieval model has its own term
+   * scorer, and the model's parameters are looked up here, once.
+   * 
+   * @param r
+   *          A retrieval model that controls how the operator behaves.
+   * @return The plan.
+   * @throws IOException
+   */
+  public QryPlan compile(RetrievalModel r) throws IOException {
+
+    if (!(this.args.get(0) instanceof QryopIl))
+      return super.compile(r);
+
+    // A term may have block bounds for top-k pruning.
+
+    BlockMaxIndex.Blocks blocks = null;
+
+    if ((QryEval.blockMaxIndex != null) && (this.args.get(0) instanceof QryopIlTerm)) {
+      QryopIlTerm term = (QryopIlTerm) this.args.get(0);
+      blocks = QryEval.blockMaxIndex.getBlocks(term.getTerm(), term.getField());
+    }
+
+    QryopIl arg = (QryopIl) this.args.get(0);
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      return new TermPlan(r, arg, blocks) {
+        protected Scorer scorer(PostingCursor postings) {
+          return new UnrankedBooleanTermScorer(postings, this.blocks);
+        }
+      };
+    } else if (r instanceof RetrievalModelRankedBoolean) {
+      return new TermPlan(r, arg, blocks) {
+        protected Scorer scorer(PostingCursor postings) {
+          return new RankedBooleanTermScorer(postings, this.blocks);
+        }
+      };
+    } else if (r instanceof RetrievalModelBMxx) {
+      final float k_1 = ((RetrievalModelBMxx) r).getParameter("k_1");
+      final float b = ((RetrievalModelBMxx) r).getParameter("b");
+
+      return new TermPlan(r, arg, blocks) {
+        protected Scorer scorer(PostingCursor postings) throws IOException {
+          return new BM25TermScorer(postings, this.blocks, k_1, b);
+        }
+      };
+    } else if (r instanceof RetrievalModelIndri) {
+      final float mu = ((RetrievalModelIndri) r).getParameter("mu");
+      final float lambda = ((RetrievalModelIndri) r).getParameter("lambda");
+      final boolean logSpace = ((RetrievalModelIndri) r).isLogSpace();
+      final boolean pruning = !QryEval.pruning.equals("none");
+
+      // A term's tf is at most the length of its field.  Other lists,
+      // e.g., #SYN(a a) or #SYN(a.title a.body), can have larger tfs.
+
+      Qryop list = (arg instanceof QryopIlShared) ? arg.args.get(0) : arg;
+      final boolean tfWithinLength = (list instanceof QryopIlTerm);
+
+      return new TermPlan(r, arg, blocks) {
+        protected Scorer scorer(PostingCursor postings) throws IOException {
+          return new IndriTermScorer(postings, this.blocks, mu, lambda, logSpace, pruning,
+                  tfWithinLength);
+        }
+      };
+    }
+
+    return super.compile(r);
+  }
+
+  /**
+   * A plan for one inverted list. Each evaluation opens a new cursor.
+   */
+  private static abstract class TermPlan extends QryPlan {
+
+    private final RetrievalModel r;
+    private final QryopIl arg;
+    protected final BlockMaxIndex.Blocks blocks; // null if the list has none
+
+    public TermPlan(RetrievalModel r, QryopIl arg, BlockMaxIndex.Blocks blocks) {
+      this.r = r;
+      this.arg = arg;
+      this.blocks = blocks;
+    }
+
+    public Scorer scorer() throws IOException {
+      AtomicReaderContext leaf = SegmentEvaluator.currentLeaf();
+
+      // Segment parallel evaluation reads a term's postings in one
+      // leaf.  Other lists are evaluated for the whole index.
+
+      if ((leaf != null) && (this.arg instanceof QryopIlTerm))
+        return scorer(((QryopIlTerm) this.arg).cursor(this.r, leaf));
+      return scorer(this.arg.cursor(this.r));
+    }
+
+    /**
+     * @return A scorer for the postings.
+     */
+    protected abstract Scorer scorer(PostingCursor postings) throws IOException;
+  }
+
+  /**
+   * A scorer for one inverted list. Subclasses compute the scores of one retrieval model.
+   */
+  private static abstract class TermScorer extends Scorer {
+
+    // Bounds are computed in double precision, so they are raised a little to cover the rounding of
+    // the float scores.
+    protected static final double ROUND_UP = 1.0 + 1e-6;
+
+    protected final PostingCursor postings;
+
+    // Block bounds
+    protected final BlockMaxIndex.Blocks blocks; // null if the list has none
+    private int block = -1; // the block that advanceShallow moved to
+    private double blockBound;
+    private double listBound = -1.0; // computed on first use
+
+    public TermScorer(PostingCursor postings, BlockMaxIndex.Blocks blocks) {
+      this.postings = postings;
+      this.blocks = blocks;
+    }
+
+    public int docID() {
+      return this.postings.docID();
+    }
+
+    public int nextDoc() throws IOException {
+      return this.postings.nextDoc();
+    }
+
+    public int advance(int target) throws IOException {
+      return this.postings.advance(target);
+    }
+
+    public double defaultScore(int docid) throws IOException {
+      return 0.0;
+    }
+
+    public long cost() {
+      return this.postings.df();
+    }
+
+    public double maxDefaultScore() {
+      return 0.0;
+    }
+
+    public int advanceShallow(int target) throws IOException {
+      if (blocks == null)
+        return super.advanceShallow(target);
+
+      int b = blocks.findBlock(Math.max(this.block, 0), target);
+
+      if (b != this.block) {
+        this.block = b;
+        this.blockBound = boundToScore((b < blocks.numBlocks()) ? blocksBound(b) : 0.0);
+      }
+
+      return (b < blocks.numBlocks()) ? blocks.lastDoc(b) : NO_MORE_DOCS;
+    }
+
+    public double blockMaxScore() {
+      return (blocks == null) ? maxScore() : this.blockBound;
+    }
+
+    /**
+     * @return The bound of the whole list, from its blocks.
+     */
+    protected double listBound() {
+      if (this.listBound < 0.0)
+        this.listBound = blocksBound(-1);
+      return this.listBound;
+    }
+
+    /**
+     * Bound the scores of a block (or of the whole list, if block is -1). Scores increase with tf and
+     * decrease with document length, so each length range is bounded by its largest tf and its
+     * shortest length.
+     */
+    private double blocksBound(int block) {
+      double bound = 0.0;
+
+      for (int i = 0; i < blocks.numRanges(); i++) {
+        int tf = blocks.maxTf(block, i);
+        if (tf > 0)
+          bound = Math.max(bound, termBound(tf, blocks.minLength(i)));
+      }
+
+      return bound;
+    }
+
+    /**
+     * @return A bound on the score of a posting with term frequency tf in a document of length
+     *         docLen.
+     */
+    protected abstract double termBound(double tf, long docLen);
+
+    /**
+     * Convert a bound to the scale of the scores, which is the same except in log space.
+     */
+    protected double boundToScore(double bound) {
+      return bound;
+    }
+  }
+
+  /**
+   * Unranked Boolean: all matching documents get a score of 1.0.
+   */
+  private static class UnrankedBooleanTermScorer extends TermScorer {
+
+    public UnrankedBooleanTermScorer(PostingCursor postings, BlockMaxIndex.Blocks blocks) {
+      super(postings, blocks);
+    }
+
+    public double score() {
+      return 1.0;
+    }
+
+    public double maxScore() {
+      return 1.0;
+    }
+
+    protected double termBound(double tf, long docLen) {
+      return 1.0;
+    }
+  }
+
+  /**
+   * Ranked Boolean: the score is the term frequency.
+   */
+  private static class RankedBooleanTermScorer extends TermScorer {
+
+    public RankedBooleanTermScorer(PostingCursor postings, BlockMaxIndex.Blocks blocks) {
+      super(postings, blocks);
+    }
+
+    public double score() throws IOException {
+      return this.postings.freq();
+    }
+
+    protected double termBound(double tf, long docLen) {
+      return tf;
+    }
+  }
+
+  /**
+   * BM25: the RSJ weight times the tf weight.
+   */
+  private static class BM25TermScorer extends TermScorer {
+
+    private final float k_1, b, avgDocLen, RSJWeight;
+    private final DocLengthStore.FieldLengths docLengths;
+
+    public BM25TermScorer(PostingCursor postings, BlockMaxIndex.Blocks blocks, float k_1, float b)
+            throws IOException {
+      super(postings, blocks);
+
+      String field = postings.field();
+      int docFreq = postings.df();
+      int N = QryEval.collectionStats.numDocs();
+
+      this.k_1 = k_1;
+      this.b = b;
+      this.avgDocLen = QryEval.collectionStats.avgDocLength(field);
+      this.RSJWeight = (float) Math.log((N - docFreq + 0.5) / (docFreq + 0.5));
+      this.docLengths = QryEval.docLenStore.getField(field, SegmentEvaluator.currentLeaf());
+    }
+
+    public double score() throws IOException {
+      int tf = this.postings.freq();
+      long docLen = this.docLengths.get(this.postings.docID());
+      float tfWeight = tf / (tf + k_1 * (1 - b + b * docLen / avgDocLen));
+      return RSJWeight * tfWeight;
+    }
+
+    /**
+     * The tf weight is below 1, so the score is at most the RSJ weight (or 0, if the RSJ weight is
+     * negative). Block bounds, if the list has them, may be tighter.
+     */
+    public double maxScore() {
+      return (blocks != null) ? Math.min(listBound(), Math.max(RSJWeight, 0.0f))
+              : Math.max(RSJWeight, 0.0f);
+    }
+
+    protected double termBound(double tf, long docLen) {
+      double tfWeight = tf / (tf + k_1 * (1 - b + b * (double) docLen / avgDocLen));
+      return Math.max(RSJWeight * tfWeight, 0.0) * ROUND_UP;
+    }
+  }
+
+  /**
+   * Indri: the smoothed probability of the term, or its logarithm in log space.
+   */
+  private static class IndriTermScorer extends TermScorer {
+
+    private final float mu, lambda, maxLikeliEstim;
+    private final boolean logSpace; // scores are log probabilities
+    private final long minDocLength; // for bounds
+    private final boolean tfWithinLength; // tf <= the document's length, for bounds
+    private final DocLengthStore.FieldLengths docLengths;
+
+    public IndriTermScorer(PostingCursor postings, BlockMaxIndex.Blocks blocks, float mu,
+            float lambda, boolean logSpace, boolean pruning, boolean tfWithinLength)
+            throws IOException {
+      super(postings, blocks);
+
+      String field = postings.field();
+      long collectionLength = QryEval.collectionStats.sumTotalTermFreq(field);
+      int collectionTermFreq = (int) postings.ctf();
+
+      this.mu = mu;
+      this.lambda = lambda;
+      this.logSpace = logSpace;
+      this.tfWithinLength = tfWithinLength;
+      this.maxLikeliEstim = (float) collectionTermFreq / collectionLength;
+      this.docLengths = QryEval.docLenStore.getField(field, SegmentEvaluator.currentLeaf());
+      this.minDocLength = pruning ? QryEval.docLenStore.minDocLength(field) : 0;
+    }
+
+    public double score() throws IOException {
+      int tf = this.postings.freq();
+      long docLen = this.docLengths.get(this.postings.docID());
+      float score =
+        lambda * (tf + mu * maxLikeliEstim) / (docLen + mu) + (1 - lambda) * maxLikeliEstim;
+      return logSpace ? Math.log(score) : score;
+    }
+
+    public double defaultScore(int docid) throws IOException {
+      long docLength = this.docLengths.get(docid);
+      float defaultScore = (lambda * mu / (docLength + mu) + (1 - lambda)) * maxLikeliEstim;
+      return logSpace ? Math.log(defaultScore) : defaultScore;
+    }
+
+    /**
+     * A term's tf is at most the document's length and at most the ctf, so a document of length dl
+     * scores at most (min(ctf, dl) + mu p) / (dl + mu), which is largest when dl = max(ctf, shortest
+     * length). Other lists' tfs are only bounded by the ctf, so their bound uses the shortest
+     * length. Block bounds, if the list has them, may be tighter. In log space, the bounds are
+     * logarithms too.
+     */
+    public double maxScore() {
+      long ctf = this.postings.ctf();
+      double bound = termBound(ctf, this.tfWithinLength ? Math.max(ctf, this.minDocLength)
+              : this.minDocLength);
+      return boundToScore((blocks != null) ? Math.min(listBound(), bound) : bound);
+    }
+
+    /**
+     * The default score is largest for the shortest document.
+     */
+    public double maxDefaultScore() {
+      return boundToScore((lambda * mu / (this.minDocLength + (double) mu) + (1 - lambda))
+              * (double) maxLikeliEstim * ROUND_UP);
+    }
+
+    protected double termBound(double tf, long docLen) {
+      return (lambda * (tf + mu * (double) maxLikeliEstim) / (docLen + (double) mu)
+              + (1 - lambda) * (double) maxLikeliEstim) * ROUND_UP;
+    }
+
+    protected double boundToScore(double bound) {
+      return logSpace ? Math.log(bound) : bound;
+    }
+  }
+
   /**
    * Return a string version of this query operator.
    * 
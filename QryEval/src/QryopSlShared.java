@@ -0,0 +1,130 @@
+/**
+ *  This class implements a shared score list operator.  The query
+ *  optimizer (QryOptimizer) puts one instance in every place where a
+ *  query repeats a score list operator, e.g., a term that occurs in
+ *  both parts of an expanded query.  The argument is evaluated the
+ *  first time its score list is needed, and the other places read the
+ *  same score list.  Document-at-a-time evaluation shares the
+ *  argument's plan instead.
+ *
+ *  A shared operator can also use a ResultCache, to share the score
+ *  list with later queries.  A cached score list comes with the
+ *  operator that produced it, which replaces the argument, so that
+ *  default scores are computed by an operator that was evaluated.
+ *  The argument is evaluated once even if several threads ask for it
+ *  (parallel:threads).
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+public class QryopSlShared extends QryopSl {
+
+  private RetrievalModel model = null;	// the model of the cached result and plan
+  private QryResult result = null;
+  private QryPlan plan = null;
+  private ResultCache cache = null;
+
+  /**
+   *  @param q The shared query operator.
+   */
+  public QryopSlShared(QryopSl q) {
+    this.args.add(q);
+  }
+
+  /**
+   *  @param q The shared query operator.
+   *  @param cache The cache that shares its score list across queries.
+   */
+  public QryopSlShared(QryopSl q, ResultCache cache) {
+    this.args.add(q);
+    this.cache = cache;
+  }
+
+  /**
+   *  Share the score list across queries.
+   *  @param cache The cache.
+   *  @return void
+   */
+  public void setCache(ResultCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   *  A shared operator has exactly one argument, so this does nothing.
+   *  @param {q} q The query argument (query operator) to append.
+   *  @return void
+   */
+  public void add(Qryop q) {
+  }
+
+  private QryopSl arg() {
+    return (QryopSl) this.args.get(0);
+  }
+
+  private void setModel(RetrievalModel r) {
+    if (this.model != r) {
+      this.model = r;
+      this.result = null;
+      this.plan = null;
+    }
+  }
+
+  /**
+   *  Evaluate the shared operator, or return the score list that was
+   *  evaluated earlier.  Callers must not modify it.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  public synchronized QryResult evaluate(RetrievalModel r) throws IOException {
+    setModel(r);
+    if ((this.result == null) && (this.cache != null)) {
+      String key = ResultCache.key(r, arg());
+      ResultCache.Entry e = this.cache.get(key, false);
+
+      if (e != null) {
+        this.args.set(0, e.op);
+        this.result = e.result;
+      } else {
+        this.result = arg().evaluate(r);
+        this.cache.put(key, arg(), this.result);
+      }
+    }
+    if (this.result == null)
+      this.result = arg().evaluate(r);
+    return this.result;
+  }
+
+  public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
+    return arg().getDefaultScore(r, docid);
+  }
+
+  public void getDefaultScores(RetrievalModel r, int[] docids, int count, double[] scores)
+          throws IOException {
+    arg().getDefaultScores(r, docids, count, scores);
+  }
+
+  /**
+   *  Compile the shared operator once.  Plans are immutable, so every
+   *  place can evaluate the same plan.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The plan.
+   *  @throws IOException
+   */
+  public synchronized QryPlan compile(RetrievalModel r) throws IOException {
+    setModel(r);
+    if (this.plan == null)
+      this.plan = arg().compile(r);
+    return this.plan;
+  }
+
+  /*
+   *  Return a string version of this query operator.  
+   *  @return The string version of this query operator.
+   */
+  public String toString() {
+    return this.args.get(0).toString();
+  }
+}
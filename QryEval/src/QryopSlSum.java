@@ -1,6 +1,5 @@
 import java.io.IOException;
 import java.util.*;
-import java.util.Map.Entry;
 
 public class QryopSlSum extends QryopSl {
 
@@ -57,46 +56,25 @@ public class QryopSlSum extends QryopSl {
     // Initialization
     allocDaaTPtrs(r);
     QryResult result = new QryResult();
-    
-    // use hashMap to check whether a DocID has appeared or not.
-    HashMap<Integer, Double> docidScoreMap = new HashMap<Integer, Double>();
-
-    double docScore = 1.0, docScoreOld;
-    DaaTPtr ptri;  // ptr to current term
-    int ptriDocid; // current doc id
-    
-    float k_3 = (float) ((RetrievalModelBMxx) r).getParameter("k_3");
+    ScoreAccumulator acc = acquireAccumulator();
+
+    float k_3 = ((RetrievalModelBMxx) r).getParameter("k_3");
     int qtf = 1; // query term frequency
 
-    // out most level: iterate all terms
-    for (int i = 0; i < this.daatPtrs.size(); i++) {
-      ptri = this.daatPtrs.get(i);
-      int docFreq = ptri.scoreList.scores.size();
-      double usrWeight = (k_3 + 1)*qtf / (k_3 + qtf);
-      for (int j = 0; j < docFreq; j++) {
-        
-        ptriDocid = ptri.scoreList.getDocid(j);
-        docScore = ptri.scoreList.getDocidScore(j) * usrWeight;
-        //System.out.print("j's docID: "+ptriDocid + ":");
-        //System.out.println(ptri.scoreList.getDocidScore(j));
-        
-        if (!docidScoreMap.containsKey(ptriDocid))
-          // if it's not in the hashMap, put it in the hashMap
-          docidScoreMap.put(ptriDocid, docScore);
-
-        else {
-          docScoreOld = docidScoreMap.get(ptriDocid);
-          docidScoreMap.put(ptriDocid, docScoreOld + docScore);
-        }
+    try {
+      // out most level: iterate all terms
+      for (int i = 0; i < this.daatPtrs.size(); i++) {
+        DaaTPtr ptri = this.daatPtrs.get(i);
+        double usrWeight = (k_3 + 1)*qtf / (k_3 + qtf);
+        for (int j = 0; j < ptri.size; j++)
+          acc.add(ptri.scoreList.getDocid(j), ptri.scoreList.getDocidScore(j) * usrWeight);
       }
+      freeDaaTPtrs();
+      acc.addTo(result.docScores);
+    } finally {
+      acc.release();
     }
-    freeDaaTPtrs();
- /*   ArrayList<Integer> sortedKeys = new ArrayList<Integer>(docidScoreMap.keySet());
-    Collections.sort(sortedKeys);
-    for (int i = 0; i < sortedKeys.size(); i++)
-      result.docScores.add(sortedKeys.get(i), docidScoreMap.get(sortedKeys.get(i)));*/
-    for (Entry <Integer, Double> entry : docidScoreMap.entrySet())
-      result.docScores.add(entry.getKey(), entry.getValue());
+
     return result;
   }
 
@@ -115,6 +93,225 @@ public class QryopSlSum extends QryopSl {
     return 0.0;
   }
 
+  /**
+   * Compile the query operator into a plan that evaluates it one document at a time. It matches
+   * the union of the arguments and adds the scores of the arguments that match.
+   * 
+   * @param r
+   *          A retrieval model that controls how the operator behaves.
+   * @return The plan.
+   * @throws IOException
+   */
+  public QryPlan compile(RetrievalModel r) throws IOException {
+
+    if (!(r instanceof RetrievalModelBMxx))
+      return super.compile(r);
+
+    float k_3 = ((RetrievalModelBMxx) r).getParameter("k_3");
+    int qtf = 1; // query term frequency
+    final double usrWeight = (k_3 + 1)*qtf / (k_3 + qtf);
+    final QryPlan[] args = compileArgs(r);
+    final String pruning = QryEval.pruning;
+
+    return new QryPlan() {
+      public Scorer scorer() throws IOException {
+        return sumScorer(scorers(args), usrWeight, pruning);
+      }
+    };
+  }
+
+  /**
+   * @return A BM25 #SUM scorer over the arguments' scorers, with the given kind of pruning.
+   */
+  private static Scorer sumScorer(Scorer[] scorers, final double usrWeight, String pruning) {
+
+    if (!pruning.equals("none")) {
+      boolean bounded = true;
+      for (int i = 0; i < scorers.length; i++)
+        bounded &= (scorers[i].maxScore() < Double.POSITIVE_INFINITY);
+      if (bounded && pruning.equals("maxscore"))
+        return new MaxScoreScorer(scorers, usrWeight);
+      if (bounded && pruning.equals("bmw"))
+        return new WandScorer(scorers, true) {
+          protected double gain(int i, double score) {
+            return score * usrWeight;
+          }
+
+          protected double gainThreshold(double minScore) {
+            return minScore;
+          }
+
+          public double score() throws IOException {
+            double docScore = 0.0;
+            for (int i = 0; i < this.scorers.length; i++)
+              if (this.scorers[i].docID() == this.doc)
+                docScore += this.scorers[i].score() * usrWeight;
+            return docScore;
+          }
+
+          public double defaultScore(int docid) {
+            return 0.0;
+          }
+        };
+    }
+
+    return new Scorer.Disjunction(scorers) {
+      public double score() throws IOException {
+        double docScore = 0.0;
+        for (int i = 0; i < this.scorers.length; i++)
+          if (this.scorers[i].docID() == this.doc)
+            docScore += this.scorers[i].score() * usrWeight;
+        return docScore;
+      }
+
+      public double defaultScore(int docid) {
+        return 0.0;
+      }
+
+      public double maxScore() {
+        double maxScore = 0.0;
+        for (int i = 0; i < this.scorers.length; i++)
+          maxScore += this.scorers[i].maxScore() * usrWeight;
+        return maxScore;
+      }
+    };
+  }
+
+  /**
+   * A #SUM scorer that skips documents that can't enter the top k (MaxScore). The arguments are
+   * ordered by their score bounds. The longest prefix whose bounds add up to less than the threshold
+   * is non-essential: a document that matches only those arguments can't be competitive, so
+   * candidates come from the other (essential) arguments. A candidate's bound is refined as the
+   * non-essential arguments are checked, and it is skipped as soon as the bound falls below the
+   * threshold. Documents that are returned get exactly the same score as the plain #SUM scorer.
+   */
+  private static class MaxScoreScorer extends Scorer {
+
+    private Scorer[] scorers; // in argument order
+    private double usrWeight;
+    private int[] order; // argument indexes, by increasing bound
+    private double[] bounds; // argument bounds, weighted
+    private double[] prefixBounds; // prefixBounds[j] = sum of the first j bounds, in order
+    private int firstEssential = 0;
+    private double threshold = Double.NEGATIVE_INFINITY;
+    private int doc = -1;
+
+    public MaxScoreScorer(Scorer[] scorers, double usrWeight) {
+      this.scorers = scorers;
+      this.usrWeight = usrWeight;
+      this.bounds = new double[scorers.length];
+
+      Integer[] order = new Integer[scorers.length];
+      for (int i = 0; i < scorers.length; i++) {
+        order[i] = i;
+        this.bounds[i] = scorers[i].maxScore() * usrWeight;
+      }
+
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return Double.compare(bounds[a], bounds[b]);
+        }
+      });
+
+      this.order = new int[scorers.length];
+      this.prefixBounds = new double[scorers.length + 1];
+      for (int j = 0; j < scorers.length; j++) {
+        this.order[j] = order[j];
+        this.prefixBounds[j + 1] = this.prefixBounds[j] + this.bounds[order[j]];
+      }
+    }
+
+    public void setMinCompetitiveScore(double minScore) {
+      this.threshold = minScore;
+      while (this.firstEssential < this.scorers.length
+              && canPrune(this.prefixBounds[this.firstEssential + 1], minScore))
+        this.firstEssential++;
+    }
+
+    public int docID() {
+      return this.doc;
+    }
+
+    public int nextDoc() throws IOException {
+      if (this.doc == NO_MORE_DOCS)
+        return NO_MORE_DOCS;
+      return advance(this.doc + 1);
+    }
+
+    public int advance(int target) throws IOException {
+      if (this.doc >= target)
+        return this.doc;
+
+      CANDIDATES: while (true) {
+
+        // The next candidate is the smallest docid of the essential arguments.
+
+        int candidate = NO_MORE_DOCS;
+        for (int j = this.firstEssential; j < this.order.length; j++) {
+          Scorer s = this.scorers[this.order[j]];
+          int d = s.docID();
+          if (d < target)
+            d = s.advance(target);
+          candidate = Math.min(candidate, d);
+        }
+
+        if (candidate == NO_MORE_DOCS)
+          return (this.doc = NO_MORE_DOCS);
+
+        target = candidate + 1;
+
+        double bound = this.prefixBounds[this.firstEssential];
+        for (int j = this.firstEssential; j < this.order.length; j++) {
+          Scorer s = this.scorers[this.order[j]];
+          if (s.docID() == candidate)
+            bound += s.score() * this.usrWeight;
+        }
+
+        // Check the non-essential arguments, highest bound first.
+
+        for (int j = this.firstEssential - 1; j >= 0; j--) {
+          if (canPrune(bound, this.threshold))
+            continue CANDIDATES;
+
+          Scorer s = this.scorers[this.order[j]];
+          bound -= this.bounds[this.order[j]];
+          if (s.docID() < candidate)
+            s.advance(candidate);
+          if (s.docID() == candidate)
+            bound += s.score() * this.usrWeight;
+        }
+
+        if (canPrune(bound, this.threshold))
+          continue CANDIDATES;
+
+        return (this.doc = candidate);
+      }
+    }
+
+    public double score() throws IOException {
+      double docScore = 0.0;
+      for (int i = 0; i < this.scorers.length; i++)
+        if (this.scorers[i].docID() == this.doc)
+          docScore += this.scorers[i].score() * this.usrWeight;
+      return docScore;
+    }
+
+    public double defaultScore(int docid) {
+      return 0.0;
+    }
+
+    public double maxScore() {
+      return this.prefixBounds[this.scorers.length];
+    }
+
+    public long cost() {
+      long cost = 0;
+      for (int i = 0; i < this.scorers.length; i++)
+        cost += this.scorers[i].cost();
+      return cost;
+    }
+  }
+
   /*
    * Return a string version of this query operator.
    * 
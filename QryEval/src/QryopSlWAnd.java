@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 
 public class QryopSlWAnd extends QryopSl {
@@ -61,7 +62,8 @@ public class QryopSlWAnd extends QryopSl {
 
   /**
    * Evaluates the query operator for Indri retrieval model, including any child operators and
-   * returns the result.
+   * returns the result. In log space the score is the weighted sum of the arguments' log scores,
+   * so no Math.pow is needed.
    * 
    * @param r
    *          A retrieval model that controls how the operator behaves.
@@ -72,39 +74,38 @@ public class QryopSlWAnd extends QryopSl {
     allocDaaTPtrs(r);
     QryResult result = new QryResult();
 
-    ArrayList<Integer> uniqueDocid = getUniqueDocid(); // get list of all doc id
-    int docidSize = uniqueDocid.size();
-    ArrayList<Double> scores = new ArrayList<Double>();// initialize socres
-    for (int i = 0; i < docidSize; i++)
-      scores.add(1.0);
+    UniqueDocids union = getUniqueDocid(); // all doc ids, and where each term's docs are
+    int[] uniqueDocid = union.docids;
+    int docidSize = uniqueDocid.length;
+    boolean logSpace = ((RetrievalModelIndri) r).isLogSpace();
+    double[] scores = new double[docidSize];// initialize socres
+    Arrays.fill(scores, logSpace ? 0.0 : 1.0);
+    int[] missing = new int[docidSize];
+    double[] defaults = new double[docidSize];
     
     normalizeWeight(); // normalize all weight
-    int ptriDocid;
     // iterate over all terms
     for (int i = 0; i < this.daatPtrs.size(); i++) { 
       float weight = this.weights.get(i);
       DaaTPtr ptri = this.daatPtrs.get(i);
-      int m = 0;
+      int[] positions = union.positions[i];
+      // default scores of the doc ids that are not in this term, in one batch
+      int numMissing = getMissingDocids(union, i, missing);
+      ((QryopSl) this.args.get(i)).getDefaultScores(r, missing, numMissing, defaults);
+      int m = 0, k = 0;
       for (int n = 0; n < ptri.size; n++) { // iterate over all doc id in this term
-        ptriDocid = ptri.scoreList.getDocid(n);
-        while (uniqueDocid.get(m) != ptriDocid) { 
-          // if doc id in uniqueDocid is less than term's current doc id
-          scores.set(m, scores.get(m) * Math.pow(((QryopSl)this.args.get(i)).getDefaultScore(r, 
-                  uniqueDocid.get(m)), weight));     // calculate default score
-          m++;
-        }
+        for (; m < positions[n]; m++)
+          // doc ids before the term's current doc id get the default score
+          scores[m] = combine(scores[m], defaults[k++], weight, logSpace);
         // now they have the same doc id, simply multiply both socores
-        scores.set(m, scores.get(m) * Math.pow(ptri.scoreList.getDocidScore(n), weight));
-        m++;
-      }
-      while (m < docidSize) {  // deal with the doc id that are not in this term
-        scores.set(m, scores.get(m) * Math.pow(((QryopSl)this.args.get(i)).getDefaultScore(r, 
-                uniqueDocid.get(m)), weight));
+        scores[m] = combine(scores[m], ptri.scoreList.getDocidScore(n), weight, logSpace);
         m++;
       }
+      for (; m < docidSize; m++)  // deal with the doc id that are not in this term
+        scores[m] = combine(scores[m], defaults[k++], weight, logSpace);
     }
-    for (int i = 0; i < uniqueDocid.size(); i++)
-      result.docScores.add(uniqueDocid.get(i), scores.get(i));
+    for (int i = 0; i < docidSize; i++)
+      result.docScores.add(uniqueDocid[i], scores[i]);
     
     freeDaaTPtrs();
 
@@ -123,17 +124,16 @@ public class QryopSlWAnd extends QryopSl {
    */
   public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
 
-    if (r instanceof RetrievalModelUnrankedBoolean)
-      return (0.0);
-    if (r instanceof RetrievalModelRankedBoolean)
-      return 0.0;
+    // Only Indri has default scores other than 0.
+
     if (r instanceof RetrievalModelIndri) {
-      double defaultScore = 1.0;
+      boolean logSpace = ((RetrievalModelIndri) r).isLogSpace();
+      double defaultScore = logSpace ? 0.0 : 1.0;
       int q = this.args.size();
       for (int i = 0; i < q; i++) {
         Qryop operation = this.args.get(i);
-        defaultScore *= Math.pow(((QryopSl)operation).getDefaultScore(r, docid), 
-                this.weights.get(i));
+        defaultScore = combine(defaultScore, ((QryopSl)operation).getDefaultScore(r, docid), 
+                this.weights.get(i), logSpace);
       }
       return defaultScore;
     }
@@ -141,6 +141,125 @@ public class QryopSlWAnd extends QryopSl {
     return 0.0;
   }
 
+  /**
+   * Calculate the default scores of a batch of documents, with the same arithmetic as
+   * getDefaultScore: each argument's batch is computed once and multiplied in.
+   */
+  public void getDefaultScores(RetrievalModel r, int[] docids, int count, double[] scores)
+          throws IOException {
+
+    if (!(r instanceof RetrievalModelIndri)) {
+      super.getDefaultScores(r, docids, count, scores);
+      return;
+    }
+
+    boolean logSpace = ((RetrievalModelIndri) r).isLogSpace();
+    double[] argScores = new double[count];
+
+    Arrays.fill(scores, 0, count, logSpace ? 0.0 : 1.0);
+    for (int i = 0; i < this.args.size(); i++) {
+      float weight = this.weights.get(i);
+      ((QryopSl) this.args.get(i)).getDefaultScores(r, docids, count, argScores);
+      for (int j = 0; j < count; j++)
+        scores[j] = combine(scores[j], argScores[j], weight, logSpace);
+    }
+  }
+
+  /**
+   * Compile the query operator into a plan that evaluates it one document at a time. It matches
+   * the union of the arguments and uses default scores for the arguments that don't match.
+   * 
+   * @param r
+   *          A retrieval model that controls how the operator behaves.
+   * @return The plan.
+   * @throws IOException
+   */
+  public QryPlan compile(RetrievalModel r) throws IOException {
+
+    if (!(r instanceof RetrievalModelIndri))
+      return super.compile(r);
+
+    // Normalize a copy of the weights, the same way normalizeWeight does.
+
+    final float[] weights = new float[this.weights.size()];
+    float totalWeight = 0.0f;
+
+    for (int i = 0; i < weights.length; i++)
+      totalWeight += this.weights.get(i);
+
+    for (int i = 0; i < weights.length; i++)
+      weights[i] = this.weights.get(i) / totalWeight;
+
+    final boolean logSpace = ((RetrievalModelIndri) r).isLogSpace();
+    final boolean pruning = !QryEval.pruning.equals("none");
+    final boolean useBlocks = QryEval.pruning.equals("bmw");
+    final QryPlan[] args = compileArgs(r);
+
+    return new QryPlan() {
+      public Scorer scorer() throws IOException {
+        Scorer[] scorers = scorers(args);
+
+        // With top-k pruning, skip documents whose score bound can't enter the top k.
+
+        if (pruning && IndriWandScorer.canBound(scorers, logSpace)) {
+          double[] logWeights = new double[weights.length];
+          for (int i = 0; i < weights.length; i++)
+            logWeights[i] = weights[i];
+
+          return new IndriWandScorer(scorers, logWeights, useBlocks, logSpace) {
+            public double score() throws IOException {
+              return wandScore(this.scorers, this.doc, weights, logSpace);
+            }
+
+            public double defaultScore(int docid) throws IOException {
+              return wandDefaultScore(this.scorers, docid, weights, logSpace);
+            }
+          };
+        }
+
+        return new Scorer.Disjunction(scorers) {
+          public double score() throws IOException {
+            return wandScore(this.scorers, this.doc, weights, logSpace);
+          }
+
+          public double defaultScore(int docid) throws IOException {
+            return wandDefaultScore(this.scorers, docid, weights, logSpace);
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * The score of a document: the product of the arguments' scores, using default scores for the
+   * arguments that don't match, each raised to the argument's weight.
+   */
+  private static double wandScore(Scorer[] scorers, int doc, float[] weights, boolean logSpace)
+          throws IOException {
+    double docScore = logSpace ? 0.0 : 1.0;
+    for (int i = 0; i < scorers.length; i++) {
+      double s = (scorers[i].docID() == doc) ? scorers[i].score() : scorers[i].defaultScore(doc);
+      docScore = combine(docScore, s, weights[i], logSpace);
+    }
+    return docScore;
+  }
+
+  private static double wandDefaultScore(Scorer[] scorers, int docid, float[] weights,
+          boolean logSpace) throws IOException {
+    double defaultScore = logSpace ? 0.0 : 1.0;
+    for (int i = 0; i < scorers.length; i++)
+      defaultScore = combine(defaultScore, scorers[i].defaultScore(docid), weights[i], logSpace);
+    return defaultScore;
+  }
+
+  /**
+   * Multiply an argument's score, raised to its weight, into a product, or add the weighted log
+   * score to a sum.
+   */
+  private static double combine(double score, double argScore, float weight, boolean logSpace) {
+    return logSpace ? score + weight * argScore : score * Math.pow(argScore, weight);
+  }
+
   /*
    * Return a string version of this query operator.
    * 
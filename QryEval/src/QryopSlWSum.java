@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 
 public class QryopSlWSum extends QryopSl {
@@ -61,7 +62,8 @@ public class QryopSlWSum extends QryopSl {
 
   /**
    * Evaluates the query operator for Indri retrieval model, including any child operators and
-   * returns the result.
+   * returns the result. A sum of probabilities has no sum-of-logs form, so in log space the
+   * weighted probabilities are summed relative to the largest one (see add).
    * 
    * @param r
    *          A retrieval model that controls how the operator behaves.
@@ -72,39 +74,38 @@ public class QryopSlWSum extends QryopSl {
     allocDaaTPtrs(r);
     QryResult result = new QryResult();
 
-    ArrayList<Integer> uniqueDocid = getUniqueDocid(); // get list of all doc id
-    int docidSize = uniqueDocid.size();
-    ArrayList<Double> scores = new ArrayList<Double>();// initialize socres
-    for (int i = 0; i < docidSize; i++)
-      scores.add(0.0);
+    UniqueDocids union = getUniqueDocid(); // all doc ids, and where each term's docs are
+    int[] uniqueDocid = union.docids;
+    int docidSize = uniqueDocid.length;
+    boolean logSpace = ((RetrievalModelIndri) r).isLogSpace();
+    double[] scores = new double[docidSize];// initialize socres
+    double[] sums = logSpace ? newLogSums(scores) : null;
+    int[] missing = new int[docidSize];
+    double[] defaults = new double[docidSize];
     
     normalizeWeight(); // normalize all weight
-    int ptriDocid;
     // iterate over all terms
     for (int i = 0; i < this.daatPtrs.size(); i++) { 
       float weight = this.weights.get(i);
       DaaTPtr ptri = this.daatPtrs.get(i);
-      int m = 0;
+      int[] positions = union.positions[i];
+      // default scores of the doc ids that are not in this term, in one batch
+      int numMissing = getMissingDocids(union, i, missing);
+      ((QryopSl) this.args.get(i)).getDefaultScores(r, missing, numMissing, defaults);
+      int m = 0, k = 0;
       for (int n = 0; n < ptri.size; n++) { // iterate over all doc id in this term
-        ptriDocid = ptri.scoreList.getDocid(n);
-        while (uniqueDocid.get(m) != ptriDocid) { 
-          // if doc id in uniqueDocid is less than term's current doc id
-          scores.set(m, scores.get(m) + ((QryopSl)this.args.get(i)).getDefaultScore(r, 
-                  uniqueDocid.get(m)) * weight);     // calculate default score
-          m++;
-        }
-        // now they have the same doc id, simply multiply both socores
-        scores.set(m, scores.get(m) + ptri.scoreList.getDocidScore(n) * weight);
-        m++;
-      }
-      while (m < docidSize) {  // deal with the doc id that are not in this term
-        scores.set(m, scores.get(m) + ((QryopSl)this.args.get(i)).getDefaultScore(r, 
-                uniqueDocid.get(m)) * weight);
+        for (; m < positions[n]; m++)
+          // doc ids before the term's current doc id get the default score
+          add(scores, sums, m, defaults[k++], weight);
+        // now they have the same doc id, simply add both socores
+        add(scores, sums, m, ptri.scoreList.getDocidScore(n), weight);
         m++;
       }
+      for (; m < docidSize; m++)  // deal with the doc id that are not in this term
+        add(scores, sums, m, defaults[k++], weight);
     }
-    for (int i = 0; i < uniqueDocid.size(); i++)
-      result.docScores.add(uniqueDocid.get(i), scores.get(i));
+    for (int i = 0; i < docidSize; i++)
+      result.docScores.add(uniqueDocid[i], sum(scores, sums, i));
     
     freeDaaTPtrs();
     return result;
@@ -122,24 +123,166 @@ public class QryopSlWSum extends QryopSl {
    */
   public double getDefaultScore(RetrievalModel r, long docid) throws IOException {
 
-    if (r instanceof RetrievalModelUnrankedBoolean)
-      return (0.0);
-    if (r instanceof RetrievalModelRankedBoolean)
-      return 0.0;
+    // Only Indri has default scores other than 0.
+
     if (r instanceof RetrievalModelIndri) {
-      double defaultScore = 0.0;
+      double[] defaultScore = new double[1];
+      double[] sums = ((RetrievalModelIndri) r).isLogSpace() ? newLogSums(defaultScore) : null;
       int q = this.args.size();
       for (int i = 0; i < q; i++) {
         Qryop operation = this.args.get(i);
-        defaultScore += ((QryopSl)operation).getDefaultScore(r, docid) *
-                this.weights.get(i);
+        add(defaultScore, sums, 0, ((QryopSl)operation).getDefaultScore(r, docid),
+                this.weights.get(i));
       }
-      return defaultScore;
+      return sum(defaultScore, sums, 0);
     }
 
     return 0.0;
   }
 
+  /**
+   * Calculate the default scores of a batch of documents, with the same arithmetic as
+   * getDefaultScore: each argument's batch is computed once and added in.
+   */
+  public void getDefaultScores(RetrievalModel r, int[] docids, int count, double[] scores)
+          throws IOException {
+
+    if (!(r instanceof RetrievalModelIndri)) {
+      super.getDefaultScores(r, docids, count, scores);
+      return;
+    }
+
+    double[] argScores = new double[count];
+    double[] sums = null;
+
+    Arrays.fill(scores, 0, count, 0.0);
+    if (((RetrievalModelIndri) r).isLogSpace())
+      sums = newLogSums(scores);
+    for (int i = 0; i < this.args.size(); i++) {
+      float weight = this.weights.get(i);
+      ((QryopSl) this.args.get(i)).getDefaultScores(r, docids, count, argScores);
+      for (int j = 0; j < count; j++)
+        add(scores, sums, j, argScores[j], weight);
+    }
+    if (sums != null)
+      for (int j = 0; j < count; j++)
+        scores[j] = sum(scores, sums, j);
+  }
+
+  /**
+   * Start log-space sums: every score is log 0 until an argument is added.
+   * 
+   * @param scores
+   *          The scores, which hold the largest log score added so far.
+   * @return The sums that go with the scores.
+   */
+  private static double[] newLogSums(double[] scores) {
+    Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+    return new double[scores.length];
+  }
+
+  /**
+   * Add an argument's weighted score to a document's score. In log space, scores[j] holds the
+   * largest log score added so far and sums[j] the weighted sum of exp(log score - scores[j]), so
+   * the sum can't underflow however small the probabilities are; otherwise sums is null.
+   */
+  private static void add(double[] scores, double[] sums, int j, double argScore, float weight) {
+    if (sums == null)
+      scores[j] += argScore * weight;
+    else if ((argScore == Double.NEGATIVE_INFINITY) || (scores[j] == Double.POSITIVE_INFINITY))
+      return;
+    else if (argScore <= scores[j])
+      sums[j] += weight * Math.exp(argScore - scores[j]);
+    else {
+      sums[j] = sums[j] * Math.exp(scores[j] - argScore) + weight;
+      scores[j] = argScore;
+    }
+  }
+
+  /**
+   * @return A document's score: the sum, or in log space the log of the sum.
+   */
+  private static double sum(double[] scores, double[] sums, int j) {
+    return (sums == null) ? scores[j] : scores[j] + Math.log(sums[j]);
+  }
+
+  /**
+   * Compile the query operator into a plan that evaluates it one document at a time. It matches
+   * the union of the arguments and uses default scores for the arguments that don't match.
+   * 
+   * @param r
+   *          A retrieval model that controls how the operator behaves.
+   * @return The plan.
+   * @throws IOException
+   */
+  public QryPlan compile(RetrievalModel r) throws IOException {
+
+    if (!(r instanceof RetrievalModelIndri))
+      return super.compile(r);
+
+    // Normalize a copy of the weights, the same way normalizeWeight does.
+
+    final float[] weights = new float[this.weights.size()];
+    float totalWeight = 0.0f;
+
+    for (int i = 0; i < weights.length; i++)
+      totalWeight += this.weights.get(i);
+
+    for (int i = 0; i < weights.length; i++)
+      weights[i] = this.weights.get(i) / totalWeight;
+
+    final boolean logSpace = ((RetrievalModelIndri) r).isLogSpace();
+    final QryPlan[] args = compileArgs(r);
+
+    return new QryPlan() {
+      public Scorer scorer() throws IOException {
+        return new Scorer.Disjunction(scorers(args)) {
+          private double[] docScore = new double[1];
+          private double[] sums = logSpace ? new double[1] : null;
+
+          private void clear() {
+            this.docScore[0] = (this.sums != null) ? Double.NEGATIVE_INFINITY : 0.0;
+            if (this.sums != null)
+              this.sums[0] = 0.0;
+          }
+
+          public double score() throws IOException {
+            clear();
+            for (int i = 0; i < this.scorers.length; i++) {
+              double s = (this.scorers[i].docID() == this.doc) ?
+                this.scorers[i].score() : this.scorers[i].defaultScore(this.doc);
+              add(this.docScore, this.sums, 0, s, weights[i]);
+            }
+            return sum(this.docScore, this.sums, 0);
+          }
+
+          public double defaultScore(int docid) throws IOException {
+            clear();
+            for (int i = 0; i < this.scorers.length; i++)
+              add(this.docScore, this.sums, 0, this.scorers[i].defaultScore(docid), weights[i]);
+            return sum(this.docScore, this.sums, 0);
+          }
+
+          public double maxScore() {
+            clear();
+            for (int i = 0; i < this.scorers.length; i++)
+              add(this.docScore, this.sums, 0,
+                      Math.max(this.scorers[i].maxScore(), this.scorers[i].maxDefaultScore()),
+                      weights[i]);
+            return sum(this.docScore, this.sums, 0);
+          }
+
+          public double maxDefaultScore() {
+            clear();
+            for (int i = 0; i < this.scorers.length; i++)
+              add(this.docScore, this.sums, 0, this.scorers[i].maxDefaultScore(), weights[i]);
+            return sum(this.docScore, this.sums, 0);
+          }
+        };
+      }
+    };
+  }
+
   /*
    * Return a string version of this query operator.
    * 
@@ -0,0 +1,225 @@
+/**
+ *  This class implements a cache of query operator results that is
+ *  shared by all of the queries in a batch.  Queries often repeat
+ *  subtrees, e.g., #NEAR/1(obama family) or the #SCORE of a common
+ *  term, and relevance feedback evaluates the original query again
+ *  inside the expanded query, so the score lists and inverted lists of
+ *  subtrees are kept in memory until the cache exceeds its size
+ *  budget.  The least recently used results are evicted first.
+ *
+ *  Results are keyed by the retrieval model and its parameters, and
+ *  by the subtree's string form; inverted lists are also keyed by
+ *  whether they have positions.  An inverted list with positions can
+ *  also satisfy a request for one without positions.  The cache keeps
+ *  the operator that produced a score list too, because its parents
+ *  ask it for default scores.
+ *
+ *  wrap() puts shared operators (QryopSlShared, QryopIlShared), which
+ *  read and fill the cache, around the subtrees of a query.  The
+ *  query's own result is not cached, because callers may modify it.
+ *  Cached results are shared, so callers must not modify them.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+public class ResultCache {
+
+  private long maxBytes;
+  private long bytes = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private long postingsSaved = 0;	// postings in the subtrees of hits
+
+  //  An access-ordered map, so iteration starts at the least
+  //  recently used result.
+
+  private LinkedHashMap<String, Entry> results =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /**
+   *  A cached result, and the operator that produced it.
+   */
+  public static class Entry {
+    final Qryop op;
+    final QryResult result;
+    final long bytes;
+    final long postings;
+
+    Entry(Qryop op, QryResult result, long postings) {
+      this.op = op;
+      this.result = result;
+      this.bytes = 64L + result.docScores.sizeInBytes() + result.invertedList.sizeInBytes();
+      this.postings = postings;
+    }
+  }
+
+  /**
+   *  Constructor.
+   *  @param maxBytes The approximate number of bytes that cached
+   *  results may use.
+   */
+  public ResultCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   *  Put shared operators that use this cache around the subtrees of a
+   *  query, except terms, whose inverted lists are cached by the
+   *  posting cache.  Score list operators wrap their arguments first
+   *  (see QryopSl.wrapScoreArgs), so that a term's score list can be
+   *  cached.
+   *  @param q The query.
+   *  @return void
+   */
+  public void wrap(Qryop q) {
+    wrapArgs(q, new HashSet<Qryop>());
+
+    // Shared inverted lists need to know whether positions are needed.
+
+    q.setPositionsNeeded(false);
+  }
+
+  private void wrapArgs(Qryop q, HashSet<Qryop> visited) {
+
+    if (q instanceof QryopSl)
+      ((QryopSl) q).wrapScoreArgs();
+
+    for (int i = 0; i < q.args.size(); i++) {
+      Qryop arg = q.args.get(i);
+
+      if (arg instanceof QryopSlShared) {
+        // Already shared within the query.  Visit it once.
+        if (visited.add(arg)) {
+          ((QryopSlShared) arg).setCache(this);
+          wrapArgs(arg.args.get(0), visited);
+        }
+      } else if (arg instanceof QryopIlShared) {
+        if (visited.add(arg)) {
+          if (!(arg.args.get(0) instanceof QryopIlTerm))
+            ((QryopIlShared) arg).setCache(this);
+          wrapArgs(arg.args.get(0), visited);
+        }
+      } else if (arg instanceof QryopSl) {
+        wrapArgs(arg, visited);
+        q.args.set(i, new QryopSlShared((QryopSl) arg, this));
+      } else if ((arg instanceof QryopIl) && !(arg instanceof QryopIlTerm)) {
+        wrapArgs(arg, visited);
+        q.args.set(i, new QryopIlShared((QryopIl) arg, this));
+      }
+    }
+  }
+
+  /**
+   *  Compute a subtree's key.  The key must be computed before the
+   *  subtree is evaluated, because some operators normalize their
+   *  weights during evaluation.
+   *  @param r The retrieval model.
+   *  @param q The subtree.
+   *  @return The key.
+   */
+  public static String key(RetrievalModel r, Qryop q) {
+    return r.toString() + ":" + q.toString();
+  }
+
+  /**
+   *  Find a cached result, and update the hit/miss counters.
+   *  @param key The subtree's key.
+   *  @param positions True if an inverted list must have positions.
+   *  @return The entry, or null.
+   */
+  public synchronized Entry get(String key, boolean positions) {
+    Entry e = positions ? null : this.results.get(key);
+
+    if (e == null)
+      e = this.results.get(key + "+p");
+
+    if (e != null) {
+      this.hits ++;
+      this.postingsSaved += e.postings;
+    } else
+      this.misses ++;
+
+    return e;
+  }
+
+  /**
+   *  Add a result to the cache, then evict the least recently used
+   *  results until the cache is within its budget.  A result that is
+   *  bigger than the whole budget is not cached.
+   *  @param key The subtree's key.
+   *  @param op The operator that produced the result.
+   *  @param result The result.
+   *  @return void
+   *  @throws IOException
+   */
+  public void put(String key, Qryop op, QryResult result) throws IOException {
+
+    if ((op instanceof QryopIl) && result.invertedList.hasPositions())
+      key += "+p";
+
+    Entry e = new Entry(op, result, postings(op));
+
+    synchronized (this) {
+      if (e.bytes > this.maxBytes)
+        return;
+
+      Entry old = this.results.put(key, e);
+
+      if (old != null)
+        this.bytes -= old.bytes;
+
+      this.bytes += e.bytes;
+
+      Iterator<Entry> it = this.results.values().iterator();
+
+      while ((this.bytes > this.maxBytes) && it.hasNext()) {
+        this.bytes -= it.next().bytes;
+        it.remove();
+        this.evictions ++;
+      }
+    }
+  }
+
+  /**
+   *  @return The number of postings that evaluating a subtree reads,
+   *  if its term lists are fetched.
+   */
+  static long postings(Qryop q) throws IOException {
+    if (q instanceof QryopIlTerm) {
+      QryopIlTerm t = (QryopIlTerm) q;
+      return QryEval.READER.docFreq(new Term(t.getField(), new BytesRef(t.getTerm())));
+    }
+
+    long postings = 0;
+
+    for (int i = 0; i < q.args.size(); i++)
+      postings += postings(q.args.get(i));
+
+    return postings;
+  }
+
+  /**
+   *  Print the cache statistics.
+   *  @return void
+   */
+  public synchronized void printStats() {
+    long requests = this.hits + this.misses;
+
+    System.out.println("Result cache:  " + this.hits + " hits, " +
+                       this.misses + " misses (" +
+                       ((requests == 0) ? 0 : (100 * this.hits / requests)) +
+                       "% hit rate), " + this.evictions + " evictions, " +
+                       this.results.size() + " results, " +
+                       (this.bytes / 1024L) + " KB of " +
+                       (this.maxBytes / 1024L) + " KB, " +
+                       this.postingsSaved + " postings not read again");
+  }
+}
@@ -25,4 +25,13 @@ public abstract class RetrievalModel {
    *  @return true if the parameter is set successfully, false otherwise.
    */
   public abstract boolean setParameter (String parameterName, String value);
+
+  /**
+   *  The model and its parameters, e.g., to key cached results.  Models
+   *  without parameters are identified by their class.
+   *  @return The string version of this retrieval model.
+   */
+  public String toString () {
+    return getClass().getName();
+  }
 }
@@ -1,4 +1,5 @@
 import java.util.HashMap;
+import java.util.TreeMap;
 
 
 public class RetrievalModelBMxx extends RetrievalModel {
@@ -49,4 +50,9 @@ public class RetrievalModelBMxx extends RetrievalModel {
     return paramMap.get(parameterName); 
   }
 
+  @Override
+  public String toString() {
+    return "BM25" + new TreeMap<String, Float>(paramMap);
+  }
+
 }
@@ -1,8 +1,12 @@
 import java.util.HashMap;
+import java.util.TreeMap;
 
 
 public class RetrievalModelIndri extends RetrievalModel {
   private HashMap<String, Float> paramMap;
+  // score in log space: operators add weighted log probabilities instead of multiplying
+  // probabilities, so long queries don't underflow, and scores are log probabilities
+  private boolean logSpace = false;
   
   /**
    * Constructor for RetrievalModelBMxx
@@ -31,6 +35,12 @@ public class RetrievalModelIndri extends RetrievalModel {
    * @return true if parameter could be set
    */
   public boolean setParameter(String parameterName, String value) {
+    if (parameterName.equalsIgnoreCase("logSpace")) {
+      if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false"))
+        return false;
+      logSpace = value.equalsIgnoreCase("true");
+      return true;
+    }
     float num = Float.parseFloat(value);
     // TODO Auto-generated method stub
     if (parameterName.equalsIgnoreCase("mu") && num >= 0) {
@@ -49,5 +59,17 @@ public class RetrievalModelIndri extends RetrievalModel {
     return paramMap.get(parameterName); 
   }
 
+  /**
+   * @return true if scores are log probabilities
+   */
+  public boolean isLogSpace() {
+    return logSpace;
+  }
+
+  @Override
+  public String toString() {
+    return "Indri" + new TreeMap<String, Float>(paramMap) + (logSpace ? "log" : "");
+  }
+
 }
 
@@ -0,0 +1,212 @@
+/**
+ *  A score accumulator for term-at-a-time evaluation.  Operators
+ *  that merge their arguments' score lists one list at a time (e.g.,
+ *  #OR, #SUM) keep each document's score so far in an accumulator, and
+ *  copy the touched documents to their result at the end, in docid
+ *  order.
+ *
+ *  There are two kinds.  A dense accumulator keeps scores in a
+ *  double[maxDoc], indexed by docid, and a bitset records which
+ *  documents were touched, so adding a score costs an array access
+ *  instead of a hash lookup and two boxed objects.  The arrays are
+ *  large, so each thread keeps one dense accumulator and reuses it;
+ *  release() clears only the touched entries.  A dense accumulator
+ *  only pays off when many documents are touched, so operators use it
+ *  when the expected union of their arguments is a large fraction of
+ *  the collection (see useDense), and a sparse one, which keeps scores
+ *  in a hash map, otherwise.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+public abstract class ScoreAccumulator {
+
+  //  Use a dense accumulator if the union is expected to cover at
+  //  least this fraction of the collection.
+
+  private static final double DENSE_FRACTION = 1.0 / 32;
+
+  private static final ThreadLocal<Dense> perThread = new ThreadLocal<Dense>();
+
+  /**
+   *  Decide whether a dense accumulator is worthwhile.  The union of
+   *  lists that are independent samples of the collection covers
+   *  1 - prod(1 - size/maxDoc) of it.
+   *  @param sizes The sizes of the lists that will be accumulated.
+   *  @param maxDoc The number of docids.
+   *  @return true if the expected union is a large fraction of maxDoc.
+   */
+  public static boolean useDense(int[] sizes, int maxDoc) {
+    if (maxDoc <= 0)
+      return false;
+
+    double uncovered = 1.0;
+
+    for (int i = 0; i < sizes.length; i++)
+      uncovered *= 1.0 - Math.min(1.0, (double) sizes[i] / maxDoc);
+
+    return (1.0 - uncovered) >= DENSE_FRACTION;
+  }
+
+  /**
+   *  Get an accumulator for lists of the given sizes:  this thread's
+   *  dense accumulator (or a new one if it is in use) if useDense says
+   *  so, otherwise a new sparse one.
+   *  @param sizes The sizes of the lists that will be accumulated.
+   *  @param maxDoc The number of docids.
+   *  @return An empty accumulator; call release() when done.
+   */
+  public static ScoreAccumulator acquire(int[] sizes, int maxDoc) {
+    if (! useDense(sizes, maxDoc))
+      return new Sparse();
+
+    Dense acc = perThread.get();
+
+    if ((acc == null) || (acc.scores.length < maxDoc)) {
+      acc = new Dense(maxDoc);
+      perThread.set(acc);
+    } else if (acc.inUse)
+      acc = new Dense(maxDoc);
+
+    acc.inUse = true;
+    return acc;
+  }
+
+  /**
+   *  Clear the accumulator, and let the thread reuse it.
+   */
+  public abstract void release();
+
+  /**
+   *  @param docid A document.
+   *  @return true if the document has a score.
+   */
+  public abstract boolean isTouched(int docid);
+
+  /**
+   *  @param docid A touched document.
+   *  @return The document's score.
+   */
+  public abstract double get(int docid);
+
+  /**
+   *  Set a document's score.
+   *  @param docid A document.
+   *  @param score Its score.
+   */
+  public abstract void set(int docid, double score);
+
+  /**
+   *  Add a score to a document's score.  The first score of a
+   *  document is stored as it is.
+   *  @param docid A document.
+   *  @param score The score to add.
+   */
+  public abstract void add(int docid, double score);
+
+  /**
+   *  Copy the touched documents and their scores to a score list, in
+   *  docid order.
+   *  @param list The score list.
+   */
+  public abstract void addTo(ScoreList list);
+
+  /**
+   *  Scores in an array indexed by docid.
+   */
+  private static class Dense extends ScoreAccumulator {
+
+    private double[] scores;
+    private long[] touched;
+    private boolean inUse = false;
+
+    Dense(int maxDoc) {
+      this.scores = new double[maxDoc];
+      this.touched = new long[(maxDoc + 63) >>> 6];
+    }
+
+    public void release() {
+      for (int w = 0; w < this.touched.length; w++) {
+        long word = this.touched[w];
+
+        while (word != 0) {
+          this.scores[(w << 6) + Long.numberOfTrailingZeros(word)] = 0.0;
+          word &= word - 1;
+        }
+
+        this.touched[w] = 0;
+      }
+
+      this.inUse = false;
+    }
+
+    public boolean isTouched(int docid) {
+      return (this.touched[docid >>> 6] & (1L << docid)) != 0;
+    }
+
+    public double get(int docid) {
+      return this.scores[docid];
+    }
+
+    public void set(int docid, double score) {
+      this.touched[docid >>> 6] |= 1L << docid;
+      this.scores[docid] = score;
+    }
+
+    public void add(int docid, double score) {
+      if (isTouched(docid))
+        this.scores[docid] += score;
+      else
+        set(docid, score);
+    }
+
+    public void addTo(ScoreList list) {
+      for (int w = 0; w < this.touched.length; w++) {
+        long word = this.touched[w];
+
+        while (word != 0) {
+          int docid = (w << 6) + Long.numberOfTrailingZeros(word);
+          list.add(docid, this.scores[docid]);
+          word &= word - 1;
+        }
+      }
+    }
+  }
+
+  /**
+   *  Scores in a hash map.
+   */
+  private static class Sparse extends ScoreAccumulator {
+
+    private HashMap<Integer, Double> scores = new HashMap<Integer, Double>();
+
+    public void release() {
+    }
+
+    public boolean isTouched(int docid) {
+      return this.scores.containsKey(docid);
+    }
+
+    public double get(int docid) {
+      return this.scores.get(docid);
+    }
+
+    public void set(int docid, double score) {
+      this.scores.put(docid, score);
+    }
+
+    public void add(int docid, double score) {
+      Double old = this.scores.get(docid);
+      this.scores.put(docid, (old == null) ? score : old + score);
+    }
+
+    public void addTo(ScoreList list) {
+      ArrayList<Integer> sortedKeys = new ArrayList<Integer>(this.scores.keySet());
+      Collections.sort(sortedKeys);
+      for (int i = 0; i < sortedKeys.size(); i++)
+        list.add(sortedKeys.get(i), this.scores.get(sortedKeys.get(i)));
+    }
+  }
+}
@@ -119,6 +119,19 @@ public class ScoreList {
     scores.add(new ScoreListEntry(docid, score));
   }
 
+  /**
+   * Create a document score that is not appended to the score list.
+   * 
+   * @param docid
+   *          An internal document id.
+   * @param score
+   *          The document's score.
+   * @return The new entry.
+   */
+  public ScoreListEntry createEntry(int docid, double score) {
+    return new ScoreListEntry(docid, score);
+  }
+
   /**
    * Get the n'th document id.
    * 
@@ -130,6 +143,50 @@ public class ScoreList {
     return this.scores.get(n).docid;
   }
 
+  /**
+   * Find the first entry, starting at index from, whose docid is at least target. The search
+   * gallops forward from the starting point and then does a binary search, so its cost grows with
+   * the log of the distance skipped rather than the distance itself. The list must be in docid
+   * order.
+   * 
+   * @param from
+   *          The index to start at.
+   * @param target
+   *          The docid to look for.
+   * @return The index of the entry, or the list size if there is none.
+   */
+  public int findDocid(int from, int target) {
+    int size = this.scores.size();
+
+    if (from >= size || getDocid(from) >= target)
+      return from;
+
+    // Gallop. getDocid(lo) < target, and getDocid(hi) >= target or hi >= size.
+
+    int lo = from;
+    int hi = from + 1;
+    int step = 1;
+
+    while (hi < size && getDocid(hi) < target) {
+      lo = hi;
+      step <<= 1;
+      hi = (step < size - lo) ? lo + step : size;
+    }
+
+    // Binary search between lo and hi.
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+
+      if (getDocid(mid) < target)
+        lo = mid;
+      else
+        hi = mid;
+    }
+
+    return hi;
+  }
+
   /**
    * Get the score of the n'th document.
    * 
@@ -140,4 +197,11 @@ public class ScoreList {
   public double getDocidScore(int n) {
     return this.scores.get(n).score;
   }
+
+  /**
+   * @return The approximate number of bytes that the score list uses.
+   */
+  public long sizeInBytes() {
+    return 64L + 48L * this.scores.size();
+  }
 }
@@ -0,0 +1,244 @@
+/**
+ *  A Scorer evaluates a query operator one document at a time.  It
+ *  iterates over the documents that the operator matches, in docid
+ *  order, and scores the current document on request.  A query tree
+ *  becomes a tree of scorers, so the whole query is evaluated in one
+ *  pass without building a score list for each query operator.
+ *
+ *  Like a PostingCursor, a scorer starts before the first document;
+ *  call nextDoc or advance to position it.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public abstract class Scorer {
+
+  //  The docid returned when the scorer is exhausted.
+
+  public static final int NO_MORE_DOCS = PostingCursor.NO_MORE_DOCS;
+
+  /**
+   *  @return The current docid, -1 if the scorer is not positioned yet,
+   *  or NO_MORE_DOCS if it is exhausted.
+   */
+  public abstract int docID();
+
+  /**
+   *  Move to the next matching document.
+   *  @return The new docid, or NO_MORE_DOCS.
+   *  @throws IOException
+   */
+  public abstract int nextDoc() throws IOException;
+
+  /**
+   *  Move to the first matching document whose docid is at least
+   *  target.  If the scorer is already there, it does not move.
+   *  @param target The docid to look for.
+   *  @return The new docid, or NO_MORE_DOCS.
+   *  @throws IOException
+   */
+  public abstract int advance(int target) throws IOException;
+
+  /**
+   *  @return The score of the current document.
+   *  @throws IOException
+   */
+  public abstract double score() throws IOException;
+
+  /**
+   *  Calculate the score of a document that this scorer does not
+   *  match.  This score is 0 for many retrieval models, but not all.
+   *  @param docid An internal document id.
+   *  @return The default score.
+   *  @throws IOException
+   */
+  public abstract double defaultScore(int docid) throws IOException;
+
+  /**
+   *  @return An estimate of the number of documents that the scorer
+   *  matches.
+   */
+  public abstract long cost();
+
+  /**
+   *  @return An upper bound on score(), or +infinity if the scorer
+   *  doesn't know one.
+   */
+  public double maxScore() {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  @return An upper bound on defaultScore(), or +infinity if the
+   *  scorer doesn't know one.
+   */
+  public double maxDefaultScore() {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  Move to the block of documents that contains target, without
+   *  moving the scorer.  Scorers that don't divide their documents
+   *  into blocks have one block, which ends at NO_MORE_DOCS.
+   *  @param target The docid to look for; targets must not decrease.
+   *  @return The last docid of the block.
+   *  @throws IOException
+   */
+  public int advanceShallow(int target) throws IOException {
+    return NO_MORE_DOCS;
+  }
+
+  /**
+   *  @return An upper bound on score() for the documents in the block
+   *  that advanceShallow moved to.
+   */
+  public double blockMaxScore() {
+    return maxScore();
+  }
+
+  /**
+   *  Tell the scorer that documents whose score is below minScore
+   *  won't be used, so it may skip them.  Scorers that can't use a
+   *  threshold ignore it.
+   *  @param minScore The lowest score that is still competitive.
+   */
+  public void setMinCompetitiveScore(double minScore) {
+  }
+
+  /**
+   *  Whether a document whose score is at most bound can be skipped.
+   *  Documents whose score equals the threshold may still win an
+   *  external id tie, and bounds are sums that can round differently
+   *  from the scores, so only bounds that are clearly below the
+   *  threshold are pruned.
+   *  @param bound An upper bound on a document's score.
+   *  @param threshold The lowest competitive score.
+   *  @return true if the document can be skipped.
+   */
+  public static boolean canPrune(double bound, double threshold) {
+    return bound + 1e-9 * (Math.abs(bound) + 1.0) < threshold;
+  }
+
+  /**
+   *  A scorer that matches the union of its arguments.  Subclasses
+   *  combine the argument scores; an argument matches the current
+   *  document if its docID() equals docID().
+   */
+  public static abstract class Disjunction extends Scorer {
+
+    protected Scorer[] scorers;
+    protected int doc = -1;
+
+    public Disjunction(Scorer[] scorers) {
+      this.scorers = scorers;
+    }
+
+    public int docID() {
+      return this.doc;
+    }
+
+    public int nextDoc() throws IOException {
+      if (this.doc == NO_MORE_DOCS)
+        return NO_MORE_DOCS;
+      return advance(this.doc + 1);
+    }
+
+    public int advance(int target) throws IOException {
+      if (this.doc >= target)
+        return this.doc;
+
+      int min = NO_MORE_DOCS;
+
+      for (int i = 0; i < this.scorers.length; i++) {
+        int d = this.scorers[i].docID();
+
+        if (d < target)
+          d = this.scorers[i].advance(target);
+
+        if (d < min)
+          min = d;
+      }
+
+      return (this.doc = min);
+    }
+
+    public long cost() {
+      long cost = 0;
+
+      for (int i = 0; i < this.scorers.length; i++)
+        cost += this.scorers[i].cost();
+
+      return cost;
+    }
+  }
+
+  /**
+   *  A scorer that matches the documents that all of its arguments
+   *  match.  The arguments are advanced in order of increasing cost,
+   *  so the shortest one controls the search.
+   */
+  public static abstract class Conjunction extends Scorer {
+
+    protected Scorer[] scorers;
+    protected int doc = -1;
+
+    public Conjunction(Scorer[] scorers) {
+      this.scorers = scorers.clone();
+
+      Arrays.sort(this.scorers, new Comparator<Scorer>() {
+        public int compare(Scorer a, Scorer b) {
+          return (a.cost() < b.cost()) ? -1 : ((a.cost() > b.cost()) ? 1 : 0);
+        }
+      });
+    }
+
+    public int docID() {
+      return this.doc;
+    }
+
+    public int nextDoc() throws IOException {
+      if (this.doc == NO_MORE_DOCS)
+        return NO_MORE_DOCS;
+      return advance(this.doc + 1);
+    }
+
+    public int advance(int target) throws IOException {
+      if (this.doc >= target)
+        return this.doc;
+
+      if (this.scorers.length == 0)
+        return (this.doc = NO_MORE_DOCS);
+
+      // Leapfrog: a scorer that lands past the candidate makes its
+      // docid the new candidate, and the search starts over.
+
+      int candidate = target;
+      int i = 0;
+
+      while (i < this.scorers.length) {
+        int d = this.scorers[i].docID();
+
+        if (d < candidate)
+          d = this.scorers[i].advance(candidate);
+
+        if (d == NO_MORE_DOCS)
+          return (this.doc = NO_MORE_DOCS);
+
+        if (d > candidate) {
+          candidate = d;
+          i = 0;
+        } else
+          i++;
+      }
+
+      return (this.doc = candidate);
+    }
+
+    public long cost() {
+      return (this.scorers.length == 0) ? 0 : this.scorers[0].cost();
+    }
+  }
+}
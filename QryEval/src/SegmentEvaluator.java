@@ -0,0 +1,191 @@
+/**
+ *  This class evaluates a query separately on each leaf (segment) of
+ *  the index, in parallel, and merges the leaves' top k documents.
+ *  Reading postings through MultiFields hides the segments, so a query
+ *  is otherwise evaluated in one sequential pass over the whole index.
+ *
+ *  The query is compiled once (see QryPlan), then each leaf gets its
+ *  own tree of scorers.  Term scorers read the term's postings in that
+ *  leaf only, and document lengths from that leaf's norms.  Docids are
+ *  converted to index docids (docBase + leaf docid), and df, ctf and
+ *  the other statistics are those of the whole index, so each document
+ *  gets the score that it gets without segments.
+ *
+ *  Other inverted lists (e.g., #NEAR/1(...)) are evaluated once for the
+ *  whole index, because their df and ctf must be index statistics too.
+ *  They are wrapped in shared operators (QryopIlShared), and every leaf
+ *  reads the same list.  A leaf's scorers may therefore match
+ *  documents of other leaves, so each leaf scores only the documents
+ *  in its own docid range.
+ *
+ *  The scorers are created by the calling thread, one leaf at a time,
+ *  because creating them can evaluate parts of the query tree, which
+ *  keeps evaluation state in its operators.  Then the pool scores the
+ *  leaves in parallel.  (A score list operator that has no plan for
+ *  the retrieval model is evaluated into a score list for each leaf.)
+ *  TopKCollector ranks documents by score and
+ *  external id, which is a total order, so merging the leaves' top k
+ *  gives the same top k as one pass over the index.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.*;
+
+public class SegmentEvaluator {
+
+  //  The leaf whose scorers the current thread is creating, if any.
+
+  private static final ThreadLocal<AtomicReaderContext> LEAF =
+    new ThreadLocal<AtomicReaderContext>();
+
+  private List<AtomicReaderContext> leaves;
+  private ExecutorService pool;
+  private int threads;
+
+  private long queries = 0;
+  private long leafEvaluations = 0;
+
+  /**
+   *  Constructor.
+   *  @param reader The index.
+   *  @param threads The number of pool threads.
+   */
+  public SegmentEvaluator(IndexReader reader, int threads) {
+    this.leaves = reader.leaves();
+    this.threads = threads;
+    this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable task) {
+        Thread t = new Thread(task, "SegmentEvaluator");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   *  @return The number of leaves (segments) of the index.
+   */
+  public int numLeaves() {
+    return this.leaves.size();
+  }
+
+  /**
+   *  @return The leaf whose scorers the current thread is creating, or
+   *  null if it is creating scorers for the whole index.
+   */
+  public static AtomicReaderContext currentLeaf() {
+    return LEAF.get();
+  }
+
+  /**
+   *  Evaluate a query on each leaf and keep only the best documents.
+   *  The ranking is the same as QryPlan.evaluateTopK's.
+   *  @param q The query.
+   *  @param r A retrieval model that controls how the operators behave.
+   *  @param k The number of documents to keep.
+   *  @return The top k documents, best first.
+   *  @throws IOException
+   */
+  public QryResult evaluateTopK(Qryop q, RetrievalModel r, int k) throws IOException {
+
+    share(q);
+    q.setPositionsNeeded(false);
+
+    QryPlan plan = QryPlan.compile(q, r);
+    Scorer[] scorers = new Scorer[this.leaves.size()];
+
+    for (int i = 0; i < scorers.length; i++) {
+      LEAF.set(this.leaves.get(i));
+      try {
+        scorers[i] = plan.scorer();
+      } finally {
+        LEAF.remove();
+      }
+    }
+
+    //  Score the leaves in parallel.
+
+    List<Future<QryResult>> results = new ArrayList<Future<QryResult>>();
+    final long[] numScored = new long[scorers.length];
+    final int topK = k;
+
+    for (int i = 0; i < scorers.length; i++) {
+      final Scorer scorer = scorers[i];
+      final AtomicReaderContext leaf = this.leaves.get(i);
+      final int n = i;
+
+      results.add(this.pool.submit(new Callable<QryResult>() {
+        public QryResult call() throws IOException {
+          TopKCollector collector = new TopKCollector(topK);
+          numScored[n] = QryPlan.collect(scorer, collector, leaf.docBase,
+                                         leaf.docBase + leaf.reader().maxDoc());
+          return collector.getResult();
+        }
+      }));
+    }
+
+    //  Merge the leaves' top k.
+
+    TopKCollector collector = new TopKCollector(k);
+    long totalScored = 0;
+
+    try {
+      for (int i = 0; i < results.size(); i++) {
+        ScoreList leafTopK = ParallelEvaluator.join(results.get(i)).docScores;
+
+        for (int j = 0; j < leafTopK.scores.size(); j++)
+          collector.collect(leafTopK.getDocid(j), leafTopK.getDocidScore(j));
+        totalScored += numScored[i];
+      }
+    } finally {
+      for (int i = 0; i < results.size(); i++)
+        results.get(i).cancel(true);
+    }
+
+    QryEval.addDocsScored(totalScored);
+
+    synchronized (this) {
+      this.queries ++;
+      this.leafEvaluations += scorers.length;
+    }
+
+    return collector.getResult();
+  }
+
+  /**
+   *  Wrap the inverted lists that #SCORE operators read, except terms,
+   *  in shared operators, so that they are evaluated once for all
+   *  leaves.  Score list operators wrap their arguments first (see
+   *  QryopSl.wrapScoreArgs).
+   */
+  private static void share(Qryop q) {
+
+    if (q instanceof QryopSl)
+      ((QryopSl) q).wrapScoreArgs();
+
+    for (int i = 0; i < q.args.size(); i++) {
+      Qryop arg = q.args.get(i);
+
+      if ((q instanceof QryopSlScore) && (arg instanceof QryopIl)) {
+        if (!(arg instanceof QryopIlTerm) && !(arg instanceof QryopIlShared))
+          q.args.set(i, new QryopIlShared((QryopIl) arg));
+      } else if (arg instanceof QryopSl)
+        share(arg);
+    }
+  }
+
+  /**
+   *  Print the segment evaluation statistics.
+   *  @return void
+   */
+  public synchronized void printStats() {
+    System.out.println("Segment evaluation:  " + this.queries + " queries on " +
+                       this.leaves.size() + " leaves, " + this.leafEvaluations +
+                       " leaf evaluations, " + this.threads + " threads");
+  }
+}
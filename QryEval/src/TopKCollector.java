@@ -0,0 +1,86 @@
+/**
+ *  This class collects the k best documents of a query.  Documents
+ *  are ranked the way getTopNDocuments ranks them: by score, with ties
+ *  broken by external document id, so both evaluation paths return
+ *  the same ranking.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+public class TopKCollector {
+
+  private int k;
+  private ScoreList entries = new ScoreList();	// creates the entries
+  private PriorityQueue<ScoreList.ScoreListEntry> pq;
+
+  /**
+   *  @param k The number of documents to keep.
+   */
+  public TopKCollector(int k) {
+    this.k = k;
+    this.pq = new PriorityQueue<ScoreList.ScoreListEntry>(Math.max(1, k),
+                                                          new ScoreList.ScoreOrder());
+  }
+
+  /**
+   *  Offer a document to the collector.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @return true if the document is in the top k (so far).
+   */
+  public boolean collect(int docid, double score) {
+
+    if (this.pq.size() < this.k) {
+      this.pq.add(this.entries.createEntry(docid, score));
+      return true;
+    }
+
+    // A document with a lower score can't enter the top k, so only
+    // create an entry (and perhaps look up its external id to break
+    // a tie) if it might.
+
+    if ((this.k == 0) || (score < this.pq.peek().getScore()))
+      return false;
+
+    ScoreList.ScoreListEntry entry = this.entries.createEntry(docid, score);
+
+    if (entry.compareTo(this.pq.peek()) <= 0)
+      return false;
+
+    this.pq.poll();
+    this.pq.add(entry);
+    return true;
+  }
+
+  /**
+   *  A document can enter the top k only if its score is at least the
+   *  threshold.  A document whose score equals the threshold may still
+   *  enter by winning the external id tie.
+   *  @return The lowest score in a full top k, otherwise -infinity.
+   */
+  public double threshold() {
+    if (this.k == 0)
+      return Double.POSITIVE_INFINITY;
+    if (this.pq.size() < this.k)
+      return Double.NEGATIVE_INFINITY;
+    return this.pq.peek().getScore();
+  }
+
+  /**
+   *  Get the collected documents.  This empties the collector.
+   *  @return The top k documents, best first.
+   */
+  public QryResult getResult() {
+    ScoreList.ScoreListEntry[] topRank =
+      new ScoreList.ScoreListEntry[this.pq.size()];
+
+    for (int i = topRank.length; i > 0; i--)
+      topRank[i - 1] = this.pq.poll();
+
+    QryResult result = new QryResult();
+    result.docScores.scores.addAll(Arrays.asList(topRank));
+    return result;
+  }
+}
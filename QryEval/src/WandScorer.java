@@ -0,0 +1,187 @@
+/**
+ *  A scorer that matches the union of its arguments, but skips
+ *  documents that can't enter the top k (WAND, and Block-Max WAND when
+ *  the arguments have block bounds).
+ *
+ *  Subclasses describe their score as a sum of per-argument gains:
+ *  the gain of an argument that matches a document increases with
+ *  the argument's score, an argument that doesn't match has no gain,
+ *  and a document can enter the top k only if its total gain is at
+ *  least gainThreshold(threshold).  For #SUM the gain is the weighted
+ *  argument score; Indri operators, which multiply scores, use
+ *  logarithms.  Gain bounds are at least 0, so an argument can't
+ *  lower the bound of the documents it matches.
+ *
+ *  The arguments are kept in docid order.  The pivot is the first
+ *  argument at which the gain bounds of the arguments so far could
+ *  reach the threshold; no document before the pivot's docid can.
+ *  With block bounds, the blocks that contain the pivot docid are
+ *  checked too, and if their bounds can't reach the threshold, the
+ *  search jumps past the first of those blocks to end.  A candidate
+ *  is returned only if the gains of its actual argument scores can
+ *  reach the threshold; it is then scored exactly by the subclass.
+ *
+ *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+public abstract class WandScorer extends Scorer {
+
+  protected Scorer[] scorers;		// in argument order
+  protected int doc = -1;
+  private boolean useBlocks;
+  private int[] order;			// argument indexes, by docid
+  private double[] bounds = null;	// gain bounds, computed on first use
+  private double threshold = Double.NEGATIVE_INFINITY;
+
+  /**
+   *  @param scorers The arguments.
+   *  @param useBlocks Whether to check block bounds.
+   */
+  public WandScorer(Scorer[] scorers, boolean useBlocks) {
+    this.scorers = scorers;
+    this.useBlocks = useBlocks;
+    this.order = new int[scorers.length];
+
+    for (int i = 0; i < scorers.length; i++)
+      this.order[i] = i;
+  }
+
+  /**
+   *  @param i An argument index.
+   *  @param score A score of the argument.
+   *  @return The argument's gain for that score.
+   */
+  protected abstract double gain(int i, double score);
+
+  /**
+   *  @param minScore The lowest competitive score.
+   *  @return The lowest total gain of a competitive document.
+   */
+  protected abstract double gainThreshold(double minScore);
+
+  public void setMinCompetitiveScore(double minScore) {
+    this.threshold = gainThreshold(minScore);
+  }
+
+  public int docID() {
+    return this.doc;
+  }
+
+  public int nextDoc() throws IOException {
+    if (this.doc == NO_MORE_DOCS)
+      return NO_MORE_DOCS;
+    return advance(this.doc + 1);
+  }
+
+  public int advance(int target) throws IOException {
+    if (this.doc >= target)
+      return this.doc;
+
+    if (this.bounds == null) {
+      this.bounds = new double[this.scorers.length];
+      for (int i = 0; i < this.scorers.length; i++)
+        this.bounds[i] = Math.max(gain(i, this.scorers[i].maxScore()), 0.0);
+    }
+
+    while (true) {
+
+      // Move the arguments that are behind the target, and restore
+      // docid order.
+
+      for (int i = 0; i < this.scorers.length; i++)
+        if (this.scorers[i].docID() < target)
+          this.scorers[i].advance(target);
+
+      for (int j = 1; j < this.order.length; j++) {
+        int i = this.order[j];
+        int d = this.scorers[i].docID();
+        int k = j;
+
+        for (; (k > 0) && (this.scorers[this.order[k - 1]].docID() > d); k--)
+          this.order[k] = this.order[k - 1];
+        this.order[k] = i;
+      }
+
+      // Find the pivot.
+
+      double bound = 0.0;
+      int pivot = -1;
+
+      for (int j = 0; j < this.order.length; j++) {
+        bound += this.bounds[this.order[j]];
+        if (! canPrune(bound, this.threshold)) {
+          pivot = j;
+          break;
+        }
+      }
+
+      if (pivot < 0)
+        return (this.doc = NO_MORE_DOCS);
+
+      int pivotDoc = this.scorers[this.order[pivot]].docID();
+
+      if (pivotDoc == NO_MORE_DOCS)
+        return (this.doc = NO_MORE_DOCS);
+
+      while ((pivot + 1 < this.order.length) &&
+             (this.scorers[this.order[pivot + 1]].docID() == pivotDoc))
+        pivot++;
+
+      // Check the blocks that contain the pivot docid.  Until the
+      // first of them ends, the arguments after the pivot can't
+      // match, and those up to the pivot stay in the same blocks.
+
+      if (this.useBlocks) {
+        double blockBound = 0.0;
+        int next = (pivot + 1 < this.order.length) ?
+          this.scorers[this.order[pivot + 1]].docID() : NO_MORE_DOCS;
+
+        for (int j = 0; j <= pivot; j++) {
+          Scorer s = this.scorers[this.order[j]];
+          int lastDoc = s.advanceShallow(pivotDoc);
+
+          blockBound += Math.max(gain(this.order[j], s.blockMaxScore()), 0.0);
+          if (lastDoc < next - 1)
+            next = lastDoc + 1;
+        }
+
+        if (canPrune(blockBound, this.threshold)) {
+          if (next == NO_MORE_DOCS)
+            return (this.doc = NO_MORE_DOCS);
+          target = next;
+          continue;
+        }
+      }
+
+      // If every argument up to the pivot is on the pivot docid, it is
+      // a candidate, unless the gains of the actual scores can't reach
+      // the threshold.  Otherwise move them there and look again.
+
+      if (this.scorers[this.order[0]].docID() == pivotDoc) {
+        double gain = 0.0;
+
+        for (int j = 0; j <= pivot; j++)
+          gain += gain(this.order[j], this.scorers[this.order[j]].score());
+
+        if (! canPrune(gain, this.threshold))
+          return (this.doc = pivotDoc);
+
+        target = pivotDoc + 1;
+        continue;
+      }
+
+      target = pivotDoc;
+    }
+  }
+
+  public long cost() {
+    long cost = 0;
+
+    for (int i = 0; i < this.scorers.length; i++)
+      cost += this.scorers[i].cost();
+
+    return cost;
+  }
+}